@@ -0,0 +1,4 @@
+#!/bin/bash
+
+./compile.sh
+java metal/benchmark/Benchmark "$@"
\ No newline at end of file
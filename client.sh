@@ -0,0 +1,4 @@
+#!/bin/bash
+
+./compile.sh
+java metal/daemon/Client "$@"
@@ -0,0 +1,4 @@
+#!/bin/bash
+
+./compile.sh
+java metal/utilities/CorpusGenerator "$@"
\ No newline at end of file
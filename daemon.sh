@@ -0,0 +1,4 @@
+#!/bin/bash
+
+./compile.sh
+java metal/Metal --daemon
\ No newline at end of file
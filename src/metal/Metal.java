@@ -1,40 +1,226 @@
 package metal;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import metal.frontend.Diagnostics;
 import metal.frontend.scanner.*;
 // should these be bin/production/Metal/... since that's where the classes reside?
 // added TT
 // TI: LGTM. No need to add bin/. The .classpath file let's vscode know where to output the classes
 import metal.frontend.parser.*;
 import metal.frontend.parser.grammar.*;
-import metal.utilities.*;
+import metal.frontend.optimizer.Optimizer;
+import metal.backend.RuntimeError;
+import metal.backend.interpreter.Interpreter;
+import metal.backend.jit.TieredExpression;
+import metal.backend.vm.BytecodeCompiler;
+import metal.backend.vm.VM;
+import metal.cache.ScriptCache;
+import metal.daemon.Client;
+import metal.daemon.Daemon;
+import metal.metrics.Metrics;
+import metal.metrics.Phase;
+import metal.metrics.Recorder;
 
 public class Metal {
-  static boolean hadError = false;
+  public static final String VERSION = "0.1.0";
+  private static final String EXTENSION = ".mtl";
+  private static final Interpreter interpreter = new Interpreter();
+  // Null when caching is turned off.
+  private static ScriptCache cache = ScriptCache.fromSystemProperties(VERSION);
+  // Lines of standard input read, run and written out at a time in batch
+  // mode, and the lines of a batch run by one task when it is parallel.
+  private static final int BATCH_LINES = 1 << 14;
+  private static final int CHUNK_LINES = 1 << 9;
+  // How scripts are evaluated: "tiered" interprets a script until it has
+  // run metal.jit.threshold times and then JIT-compiles it, "interpreter"
+  // only interprets and "vm" compiles every script to bytecode.
+  private static final String BACKEND = System.getProperty("metal.backend", "tiered");
+  private static final int HOT_SCRIPTS = 1 << 10;
+  private static final ThreadLocal<VM> vm = ThreadLocal.withInitial(VM::new);
+  // The scripts last run on the current thread by the tiered backend, keyed
+  // by source text or cache key, so that a script run again skips parsing
+  // and counts towards its JIT threshold.
+  private static final ThreadLocal<Map<Object, TieredExpression>> scripts =
+      ThreadLocal.withInitial(() -> new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, TieredExpression> eldest) {
+          return size() > HOT_SCRIPTS;
+        }
+      });
+
+  // Output and error state of the script being run on the current thread,
+  // so that several scripts can be run at once without mixing them up.
+  private static final ThreadLocal<Session> session =
+      ThreadLocal.withInitial(() -> new Session(System.out, System.err, ""));
+
   public static void main(String[] args) throws IOException {
-    if (args.length > 1) {
-      System.out.println("Usage: metal [script]");
+    if (args.length > 0 && args[0].equals("--stats")) {
+      // Print phase totals to stderr however the run ends.
+      Metrics.enable();
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> Metrics.printSummary(System.err)));
+      args = Arrays.copyOfRange(args, 1, args.length);
+    }
+    if (args.length > 0 && args[0].equals("--no-cache")) {
+      // Neither read nor write ~/.cache/metal (also -Dmetal.cache=false).
+      cache = null;
+      args = Arrays.copyOfRange(args, 1, args.length);
+    }
+    if (!List.of("tiered", "interpreter", "vm").contains(BACKEND)) {
+      System.err.println("Error: Unknown backend '" + BACKEND + "' (tiered, interpreter or vm).");
       System.exit(64);
-    } else if (args.length == 1) {
+    }
+
+    if (args.length == 0) {
+      runREPL();
+    } else if (args[0].equals("--daemon")) {
+      new Daemon(Client.defaultSocket()).serve();
+    } else if (args[0].equals("--batch")) {
+      runBatch(args.length > 1 && args[1].equals("--parallel"));
+    } else if (args[0].equals("--client")) {
+      // Kept for compatibility; metal.daemon.Client starts faster.
+      Client.main(Arrays.copyOfRange(args, 1, args.length));
+    } else if (args.length == 1 && Files.isRegularFile(Paths.get(args[0]))) {
       runFile(args[0]);
     } else {
-      runREPL();
+      runFiles(args);
     }
   }
 
   /**
-   * Executes a file
+   * Executes a file, scanning it straight out of a UTF-8 memory mapping
    */
   private static void runFile(String path) throws IOException {
-    byte[] bytes = Files.readAllBytes(Paths.get(path));
-    run(new String(bytes, Charset.defaultCharset()));
+    runPath(Paths.get(path));
+
+    // Indicate an error in the exit code.
+    Session current = session.get();
+    if (current.hadError) System.exit(65);
+    if (current.hadRuntimeError) System.exit(70);
+  }
+
+  /**
+   * Executes a file, loading its tree from the script cache when the file
+   * has not changed since it was last parsed
+   */
+  private static void runPath(Path path) throws IOException {
+    Recorder recorder = Recorder.start(path.toString(), Files.size(path));
+    byte[] key = null;
+    if (cache != null) {
+      key = cache.key(path);
+      if (executeHot(ByteBuffer.wrap(key), recorder)) return;
+      Expression cached = cache.load(key);
+      if (cached != null) {
+        execute(ByteBuffer.wrap(key), cached, recorder);
+        return;
+      }
+    }
+
+    Expression expression;
+    Diagnostics diagnostics = new Diagnostics();
+    try (Reader reader = new MappedFileReader(path)) {
+      expression = parse(new Scanner(reader, diagnostics), diagnostics, recorder);
+    }
+    if (expression == null) return;
+
+    if (key != null) {
+      cache.store(key, expression);
+    }
+    execute(key == null ? null : ByteBuffer.wrap(key), expression, recorder);
+  }
+
+  /**
+   * Executes several files, and every script under any directory given, on
+   * the common fork/join pool. Output and errors are buffered per file and
+   * written out in the order the files were given.
+   */
+  private static void runFiles(String[] arguments) throws IOException {
+    int status = runScripts(arguments, System.out, System.err);
+
+    // Indicate an error in the exit code.
+    if (status != 0) System.exit(status);
+  }
+
+  /**
+   * Executes the scripts named by the arguments, as runFiles() does, writing
+   * their output to the given streams. Returns the exit status: 65 if any
+   * script had a syntax error, else 70 if any failed at run time, else 0.
+   */
+  public static int runScripts(String[] arguments, PrintStream out, PrintStream err) throws IOException {
+    // A single file is reported like runFile() does, without a prefix.
+    boolean single = arguments.length == 1 && Files.isRegularFile(Paths.get(arguments[0]));
+
+    List<Path> paths = new ArrayList<>();
+    for (String argument : arguments) {
+      Path path = Paths.get(argument);
+      if (Files.isDirectory(path)) {
+        try (Stream<Path> files = Files.walk(path)) {
+          paths.addAll(files
+              .filter(file -> Files.isRegularFile(file) && file.toString().endsWith(EXTENSION))
+              .sorted()
+              .collect(Collectors.toList()));
+        }
+      } else {
+        paths.add(path);
+      }
+    }
+
+    ForkJoinPool pool = ForkJoinPool.commonPool();
+    List<ForkJoinTask<Session>> tasks = new ArrayList<>();
+    for (Path path : paths) {
+      String prefix = single ? "" : path + ": ";
+      tasks.add(pool.submit(() -> runIsolated(path, prefix)));
+    }
+
+    boolean hadError = false;
+    boolean hadRuntimeError = false;
+    for (ForkJoinTask<Session> task : tasks) {
+      Session result = task.join();
+      result.writeTo(out, err);
+      hadError |= result.hadError;
+      hadRuntimeError |= result.hadRuntimeError;
+    }
+
+    if (hadError) return 65;
+    if (hadRuntimeError) return 70;
+    return 0;
+  }
+
+  private static Session runIsolated(Path path, String prefix) {
+    Session result = Session.buffered(prefix);
+    session.set(result);
+    try {
+      runPath(path);
+    } catch (IOException | UncheckedIOException error) {
+      result.err.println(result.prefix + "Error: Could not read file (" + error.getMessage() + ").");
+      result.hadError = true;
+    } finally {
+      session.remove();
+    }
+    return result;
   }
 
   /**
@@ -47,48 +233,232 @@ public class Metal {
 
     for (;;) {
       System.out.print("> ");
-      run(reader.readLine());
+      String line = reader.readLine();
+      if (line == null) {
+        System.out.println();
+        break;
+      }
+      run(line);
+      session.get().hadError = false;
     }
   }
 
+  /**
+   * Executes each line of standard input as a script of its own, without
+   * prompts. Lines are read in batches and the output of a batch is written
+   * in input order through one buffered stream, flushed once per batch. With
+   * parallel, the lines of a batch are run on the common fork/join pool.
+   */
+  private static void runBatch(boolean parallel) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8), 1 << 16);
+    PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+    PrintStream err = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.err), 1 << 13), false);
+    ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    boolean hadError = false;
+    boolean hadRuntimeError = false;
+    List<String> lines = new ArrayList<>(BATCH_LINES);
+    long read = 0;
+    boolean done = false;
+    while (!done) {
+      lines.clear();
+      while (lines.size() < BATCH_LINES) {
+        String line = reader.readLine();
+        if (line == null) {
+          done = true;
+          break;
+        }
+        lines.add(line);
+      }
+
+      List<Session> results = new ArrayList<>();
+      if (parallel && lines.size() > CHUNK_LINES) {
+        List<ForkJoinTask<Session>> tasks = new ArrayList<>();
+        long before = read;
+        for (int from = 0; from < lines.size(); from += CHUNK_LINES) {
+          int start = from;
+          int end = Math.min(from + CHUNK_LINES, lines.size());
+          tasks.add(pool.submit(() -> runLines(lines, start, end, before)));
+        }
+        for (ForkJoinTask<Session> task : tasks) {
+          results.add(task.join());
+        }
+      } else {
+        results.add(runLines(lines, 0, lines.size(), read));
+      }
+
+      for (Session result : results) {
+        result.writeTo(out, err);
+        hadError |= result.hadError;
+        hadRuntimeError |= result.hadRuntimeError;
+      }
+      out.flush();
+      err.flush();
+      read += lines.size();
+    }
+
+    // Indicate an error in the exit code.
+    if (hadError) System.exit(65);
+    if (hadRuntimeError) System.exit(70);
+  }
+
+  /*
+   * Runs lines [from, to) of a batch, one script per line, with errors
+   * prefixed by the line number on standard input, given the number of lines
+   * read before the batch. Blank lines are skipped.
+   */
+  private static Session runLines(List<String> lines, int from, int to, long before) {
+    Session result = Session.buffered("");
+    session.set(result);
+    try {
+      for (int i = from; i < to; i++) {
+        String line = lines.get(i);
+        if (line.isBlank()) continue;
+        result.prefix = "<stdin>:" + (before + i + 1) + ": ";
+        run(line);
+      }
+    } finally {
+      session.remove();
+    }
+    return result;
+  }
+
   /**
    * Executes Metal
    */
   private static void run(String source) {    
-    Scanner scanner = new Scanner(source);    
-    List<Token> tokens = scanner.scanTokens();
-
-    // // For now, just print the tokens.        
-    // for (Token token : tokens) {              
-    //   System.out.println(token);              
-    // } 
-    
+    Recorder recorder = Recorder.start("<repl>", source.length());
+    if (executeHot(source, recorder)) return;
+    Diagnostics diagnostics = new Diagnostics();
+    Expression expression = parse(new Scanner(source, diagnostics), diagnostics, recorder);
+    if (expression != null) {
+      execute(source, expression, recorder);
+    }
+  }
+
+  /**
+   * Parses and optimizes a script, returning null if there was a syntax
+   * error
+   */
+  private static Expression parse(TokenStream tokens, Diagnostics diagnostics, Recorder recorder) {
     //added TT
-    Parser parser = new Parser(tokens);                    
+    recorder.begin();
+    Parser parser = new Parser(recorder.meter(tokens), diagnostics);                    
     Expression expression = parser.parse();
+    recorder.endParse(expression);
 
     // Stop if there was a syntax error.                   
-    if (hadError) return;                                  
+    if (diagnostics.hadError()) {
+      report(diagnostics);
+      return null;
+    }
 
-    System.out.println(new ASTPrinter().print(expression));                                        
+    recorder.begin();
+    Expression optimized = Optimizer.optimize(expression);
+    recorder.end(Phase.Optimize, optimized);
+    return optimized;
   }
-  
-  public static void error(int line, int column, String message) {                       
-    report(line,column, "", message);                                        
+
+  /*
+   * Evaluates a parsed script on the configured backend. Under the tiered
+   * backend the script is remembered by key, if it has one, for
+   * executeHot().
+   */
+  private static void execute(Object key, Expression expression, Recorder recorder) {
+    Session current = session.get();
+    recorder.begin();
+    try {
+      Object value;
+      switch (BACKEND) {
+      case "interpreter":
+        value = interpreter.evaluate(expression);
+        break;
+      case "vm":
+        value = vm.get().run(BytecodeCompiler.compile(expression));
+        break;
+      default:
+        TieredExpression tiered = new TieredExpression(expression, interpreter);
+        if (key != null) scripts.get().put(key, tiered);
+        value = tiered.evaluate();
+      }
+      current.out.println(Interpreter.stringify(value));
+    } catch (RuntimeError error) {
+      runtimeError(error);
+    }
+    recorder.end(Phase.Evaluate, expression);
   }
 
-  private static void report(int line, int column, String where, String message) {
-    System.err.println(                                               
-        "[Line " + line + " Column " + column + "] Error" + where + ": " + message);        
-    hadError = true;                                                  
+  /*
+   * Evaluates the script last run under key on this thread, if the tiered
+   * backend still has it, and returns whether it did.
+   */
+  private static boolean executeHot(Object key, Recorder recorder) {
+    TieredExpression tiered = scripts.get().get(key);
+    if (tiered == null) return false;
+
+    Session current = session.get();
+    recorder.begin();
+    try {
+      current.out.println(Interpreter.stringify(tiered.evaluate()));
+    } catch (RuntimeError error) {
+      runtimeError(error);
+    }
+    recorder.end(Phase.Evaluate, tiered.expression());
+    return true;
+  }
+  
+  private static void report(Diagnostics diagnostics) {
+    Session current = session.get();
+    for (Diagnostics.Diagnostic error : diagnostics.errors()) {
+      current.err.println(current.prefix + error);
+    }
+    current.hadError = true;                                                  
   } 
 
-  public static void error(Token token, String message) {              
-    if (token.type == TokenType.EOF) {                          
-      report(token.line, token.column, " at end", message);                   
-    } else {                                                    
-      report(token.line, token.column, " at '" + token.lexeme + "'", message);
-    }                                                           
-  }  
+  public static void runtimeError(RuntimeError error) {
+    Session current = session.get();
+    current.err.println(current.prefix + error.getMessage());
+    if (error.token != null) {
+      current.err.println(current.prefix + "[Line " + error.token.line + " Column " + error.token.column + "]");
+    }
+    current.hadRuntimeError = true;
+  }
 
+  private static class Session {
+    final PrintStream out;
+    final PrintStream err;
+    // Prepended to error messages to tell files, or lines in batch mode,
+    // apart.
+    String prefix;
+    private final ByteArrayOutputStream outBuffer;
+    private final ByteArrayOutputStream errBuffer;
+    boolean hadError = false;
+    boolean hadRuntimeError = false;
+
+    Session(PrintStream out, PrintStream err, String prefix) {
+      this(out, err, prefix, null, null);
+    }
+
+    private Session(PrintStream out, PrintStream err, String prefix,
+        ByteArrayOutputStream outBuffer, ByteArrayOutputStream errBuffer) {
+      this.out = out;
+      this.err = err;
+      this.prefix = prefix;
+      this.outBuffer = outBuffer;
+      this.errBuffer = errBuffer;
+    }
+
+    static Session buffered(String prefix) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      ByteArrayOutputStream err = new ByteArrayOutputStream();
+      return new Session(new PrintStream(out, false), new PrintStream(err, false), prefix, out, err);
+    }
+
+    void writeTo(PrintStream out, PrintStream err) {
+      this.out.flush();
+      this.err.flush();
+      out.write(outBuffer.toByteArray(), 0, outBuffer.size());
+      err.write(errBuffer.toByteArray(), 0, errBuffer.size());
+    }
+  }
 }
@@ -0,0 +1,73 @@
+package metal.backend;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import metal.frontend.scanner.OperatorKind;
+import metal.frontend.parser.grammar.Expression;
+
+// Static typing helpers shared by the evaluators.
+public final class Numeric {
+
+  private Numeric() {}
+
+  /**
+   * Whether an expression is guaranteed to produce a number (or fail), so
+   * that it can be evaluated entirely on the double path.
+   */
+  public static boolean isNumeric(Expression expression) {
+    return expression.acceptBoolean(new Checker());
+  }
+
+  private static final class Checker implements Expression.BooleanVisitor {
+    // + nodes reached so far. The answer is the conjunction over all of
+    // them, so one reached again can only have been numeric, and a subtree
+    // shared by several + nodes is checked once. Small trees, which the
+    // interpreter checks on every evaluation, are walked without the set.
+    private static final int UNTRACKED = 64;
+    private int visits = 0;
+    private Set<Expression> sums = null;
+
+    @Override
+    public boolean visitBinaryExpression(Expression.Binary expression) {
+      switch (expression.operator.kind) {
+      case Minus:
+      case Star:
+      case Slash:
+        return true;
+      case Plus:
+        if (sums == null && ++visits > UNTRACKED) {
+          sums = Collections.newSetFromMap(new IdentityHashMap<>());
+        }
+        if (sums != null && !sums.add(expression)) {
+          return true;
+        }
+        return expression.left.acceptBoolean(this) && expression.right.acceptBoolean(this);
+      }
+      return false;
+    }
+
+    @Override
+    public boolean visitGroupExpression(Expression.Group expression) {
+      return expression.expression.acceptBoolean(this);
+    }
+
+    @Override
+    public boolean visitLiteralExpression(Expression.Literal expression) {
+      return expression.value instanceof Double;
+    }
+
+    @Override
+    public boolean visitUnaryExpression(Expression.Unary expression) {
+      return expression.operator.kind == OperatorKind.Minus;
+    }
+
+    @Override
+    public boolean visitVariableExpression(Expression.Variable expression) {
+      // Variables hold numbers wherever they are bound; elsewhere reading
+      // one fails.
+      return true;
+    }
+  }
+}
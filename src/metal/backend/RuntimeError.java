@@ -0,0 +1,15 @@
+package metal.backend;
+
+import metal.frontend.scanner.Token;
+
+public class RuntimeError extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  public final Token token;
+
+  public RuntimeError(Token token, String message) {
+    super(message);
+    this.token = token;
+  }
+}
@@ -0,0 +1,50 @@
+package metal.backend;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import metal.frontend.parser.grammar.Expression;
+
+// Finds the subtrees that a tree holds more than once. The Optimizer
+// hash-conses identical subtrees into a single node with several parents,
+// and the evaluators compute such a node once per evaluation and reuse its
+// value at every other parent.
+public final class Sharing {
+  private final Set<Expression> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+  private Set<Expression> shared = Collections.emptySet();
+
+  private Sharing() {}
+
+  /**
+   * The operator nodes reachable from the root along more than one path,
+   * compared by identity. Literals and variables are left out: reading them
+   * again is as cheap as remembering them.
+   */
+  public static Set<Expression> sharedNodes(Expression root) {
+    Sharing sharing = new Sharing();
+    sharing.visit(root);
+    return sharing.shared;
+  }
+
+  private void visit(Expression expression) {
+    if (expression instanceof Expression.Group) {
+      visit(((Expression.Group) expression).expression);
+    } else if (expression instanceof Expression.Binary || expression instanceof Expression.Unary) {
+      if (!seen.add(expression)) {
+        // Everything below it was visited on the first path already.
+        if (shared.isEmpty()) {
+          shared = Collections.newSetFromMap(new IdentityHashMap<>());
+        }
+        shared.add(expression);
+        return;
+      }
+      if (expression instanceof Expression.Binary) {
+        visit(((Expression.Binary) expression).left);
+        visit(((Expression.Binary) expression).right);
+      } else {
+        visit(((Expression.Unary) expression).right);
+      }
+    }
+  }
+}
@@ -0,0 +1,420 @@
+package metal.backend.columnar;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import metal.backend.RuntimeError;
+import metal.backend.Sharing;
+import metal.frontend.scanner.OperatorKind;
+import metal.frontend.scanner.Token;
+import metal.frontend.parser.grammar.Expression;
+
+// Evaluates one numeric expression over whole columns of rows, with each
+// variable bound to a double[] holding its value in every row.
+//
+// The tree is compiled once into a short program of column operations.
+// Rows are processed in blocks: every operation runs as a tight loop over
+// the block, so dispatch is paid once per block rather than once per row,
+// and the loops are simple enough for HotSpot to vectorize. Blocks are
+// small enough for the intermediate columns to stay in the L1 cache.
+public final class ColumnarExpression {
+  private static final int BLOCK = 1024;
+
+  private static final byte ADD = 0;
+  private static final byte SUBTRACT = 1;
+  private static final byte MULTIPLY = 2;
+  private static final byte DIVIDE = 3;
+  private static final byte NEGATE = 4;
+  private static final byte COPY = 5;
+
+  // Operation i sets slot targets[i] from operands lefts[i] and rights[i].
+  // A slot is a column: the variables, then the temporaries, then the
+  // result. A negative operand ~c is the scalar constants[c].
+  private final byte[] opcodes;
+  private final int[] targets;
+  private final int[] lefts;
+  private final int[] rights;
+  private final double[] constants;
+
+  // Variable names in slot order, with the first use of each for errors.
+  private final String[] variables;
+  private final Token[] uses;
+  private final int temporaries;
+
+  private ColumnarExpression(Compiler compiler) {
+    int count = compiler.count;
+    opcodes = Arrays.copyOf(compiler.opcodes, count);
+    targets = Arrays.copyOf(compiler.targets, count);
+    lefts = Arrays.copyOf(compiler.lefts, count);
+    rights = Arrays.copyOf(compiler.rights, count);
+    constants = Arrays.copyOf(compiler.constants, compiler.constantCount);
+    variables = compiler.slots.keySet().toArray(new String[0]);
+    uses = compiler.uses.toArray(new Token[0]);
+    temporaries = compiler.temporaries;
+  }
+
+  /**
+   * Compiles an expression made of numbers, variables and arithmetic.
+   * Anything else cannot be evaluated over columns and is reported as a
+   * RuntimeError.
+   */
+  public static ColumnarExpression compile(Expression expression) {
+    Compiler compiler = new Compiler();
+    compiler.compileRoot(expression);
+    return new ColumnarExpression(compiler);
+  }
+
+  /**
+   * The variables the expression reads, in the order evaluate() takes
+   * their columns.
+   */
+  public List<String> variables() {
+    return Collections.unmodifiableList(Arrays.asList(variables));
+  }
+
+  /**
+   * Evaluates the expression for rows [0, rows), reading each variable's
+   * column from the map.
+   */
+  public double[] evaluate(Map<String, double[]> columns, int rows) {
+    double[][] bound = new double[variables.length][];
+    for (int i = 0; i < variables.length; i++) {
+      bound[i] = columns.get(variables[i]);
+      if (bound[i] == null) {
+        throw new RuntimeError(uses[i], "Undefined variable '" + variables[i] + "'.");
+      }
+    }
+    double[] result = new double[rows];
+    evaluate(bound, result, 0, rows);
+    return result;
+  }
+
+  /**
+   * Evaluates the expression for rows [from, to), reading the column of
+   * variables().get(i) from columns[i] and writing into the same rows of
+   * result. Disjoint ranges can be evaluated on different threads.
+   */
+  public void evaluate(double[][] columns, double[] result, int from, int to) {
+    if (columns.length != variables.length) {
+      throw new IllegalArgumentException("Expected " + variables.length + " columns, got " + columns.length + ".");
+    }
+    if (from < 0 || to > result.length || from > to) {
+      throw new IndexOutOfBoundsException("Rows [" + from + ", " + to + ") are out of bounds.");
+    }
+    for (int i = 0; i < columns.length; i++) {
+      if (columns[i].length < to) {
+        throw new IllegalArgumentException("Column '" + variables[i] + "' has only " + columns[i].length + " rows.");
+      }
+    }
+
+    int resultSlot = variables.length + temporaries;
+    double[][] slots = new double[resultSlot + 1][];
+    int[] bases = new int[slots.length];
+    System.arraycopy(columns, 0, slots, 0, columns.length);
+    for (int i = variables.length; i < resultSlot; i++) {
+      slots[i] = new double[Math.min(BLOCK, to - from)];
+    }
+    slots[resultSlot] = result;
+
+    for (int start = from; start < to; start += BLOCK) {
+      int length = Math.min(BLOCK, to - start);
+      // Temporaries hold the current block only; columns are indexed by row.
+      for (int i = 0; i < variables.length; i++) {
+        bases[i] = start;
+      }
+      bases[resultSlot] = start;
+
+      for (int i = 0; i < opcodes.length; i++) {
+        execute(i, slots, bases, length);
+      }
+    }
+  }
+
+  private void execute(int instruction, double[][] slots, int[] bases, int length) {
+    byte opcode = opcodes[instruction];
+    double[] out = slots[targets[instruction]];
+    int o = bases[targets[instruction]];
+    int left = lefts[instruction];
+    int right = rights[instruction];
+
+    if (opcode == COPY) {
+      if (left < 0) {
+        Arrays.fill(out, o, o + length, constants[~left]);
+      } else {
+        System.arraycopy(slots[left], bases[left], out, o, length);
+      }
+      return;
+    }
+
+    if (opcode == NEGATE) {
+      double[] x = slots[left];
+      int xo = bases[left];
+      for (int i = 0; i < length; i++) {
+        out[o + i] = -x[xo + i];
+      }
+      return;
+    }
+
+    if (left >= 0 && right >= 0) {
+      vectorVector(opcode, out, o, slots[left], bases[left], slots[right], bases[right], length);
+    } else if (left >= 0) {
+      vectorScalar(opcode, out, o, slots[left], bases[left], constants[~right], length);
+    } else {
+      scalarVector(opcode, out, o, constants[~left], slots[right], bases[right], length);
+    }
+  }
+
+  private static void vectorVector(byte opcode, double[] out, int o, double[] x, int xo, double[] y, int yo, int length) {
+    switch (opcode) {
+    case ADD:
+      for (int i = 0; i < length; i++) out[o + i] = x[xo + i] + y[yo + i];
+      break;
+    case SUBTRACT:
+      for (int i = 0; i < length; i++) out[o + i] = x[xo + i] - y[yo + i];
+      break;
+    case MULTIPLY:
+      for (int i = 0; i < length; i++) out[o + i] = x[xo + i] * y[yo + i];
+      break;
+    case DIVIDE:
+      for (int i = 0; i < length; i++) out[o + i] = x[xo + i] / y[yo + i];
+      break;
+    }
+  }
+
+  private static void vectorScalar(byte opcode, double[] out, int o, double[] x, int xo, double y, int length) {
+    switch (opcode) {
+    case ADD:
+      for (int i = 0; i < length; i++) out[o + i] = x[xo + i] + y;
+      break;
+    case SUBTRACT:
+      for (int i = 0; i < length; i++) out[o + i] = x[xo + i] - y;
+      break;
+    case MULTIPLY:
+      for (int i = 0; i < length; i++) out[o + i] = x[xo + i] * y;
+      break;
+    case DIVIDE:
+      for (int i = 0; i < length; i++) out[o + i] = x[xo + i] / y;
+      break;
+    }
+  }
+
+  private static void scalarVector(byte opcode, double[] out, int o, double x, double[] y, int yo, int length) {
+    switch (opcode) {
+    case ADD:
+      for (int i = 0; i < length; i++) out[o + i] = x + y[yo + i];
+      break;
+    case SUBTRACT:
+      for (int i = 0; i < length; i++) out[o + i] = x - y[yo + i];
+      break;
+    case MULTIPLY:
+      for (int i = 0; i < length; i++) out[o + i] = x * y[yo + i];
+      break;
+    case DIVIDE:
+      for (int i = 0; i < length; i++) out[o + i] = x / y[yo + i];
+      break;
+    }
+  }
+
+  /*
+   * Lowers a tree into operations. A subtree at nesting depth d leaves its
+   * value in temporary d, so a temporary is only reused once the value in
+   * it has been consumed. A subtree the tree shares (see Sharing) is kept
+   * in a temporary of its own instead, and computed only once. Operations
+   * over constants alone are folded.
+   */
+  private static final class Compiler {
+    private final Map<String, Integer> slots = new LinkedHashMap<>();
+    private final List<Token> uses = new ArrayList<>();
+    private int temporaries = 0;
+    private int kept = 0;
+
+    private Set<Expression> shared;
+    private final Map<Expression, Integer> operands = new IdentityHashMap<>();
+
+    private byte[] opcodes = new byte[16];
+    private int[] targets = new int[16];
+    private int[] lefts = new int[16];
+    private int[] rights = new int[16];
+    private int count = 0;
+
+    private double[] constants = new double[16];
+    private int constantCount = 0;
+
+    // Temporaries are numbered after the variables, which are only all
+    // known once the tree has been walked, so operations refer to them as
+    // TEMPORARY + depth until compileRoot() renumbers them. Kept
+    // temporaries are KEPT + n, and numbered after the others.
+    private static final int TEMPORARY = 1 << 30;
+    private static final int KEPT = 1 << 29;
+
+    void compileRoot(Expression expression) {
+      shared = Sharing.sharedNodes(expression);
+      int value = compile(expression, 0, null);
+      if (value >= TEMPORARY && count > 0 && targets[count - 1] == value) {
+        targets[count - 1] = -1;
+      } else {
+        emit(COPY, -1, value, 0);
+      }
+
+      int variables = slots.size();
+      int result = variables + temporaries + kept;
+      for (int i = 0; i < count; i++) {
+        targets[i] = targets[i] == -1 ? result : renumber(targets[i], variables);
+        lefts[i] = renumber(lefts[i], variables);
+        if (opcodes[i] != NEGATE && opcodes[i] != COPY) {
+          rights[i] = renumber(rights[i], variables);
+        }
+      }
+      temporaries += kept;
+    }
+
+    private int renumber(int operand, int variables) {
+      if (operand >= TEMPORARY) {
+        return operand - TEMPORARY + variables;
+      }
+      return operand >= KEPT ? operand - KEPT + variables + temporaries : operand;
+    }
+
+    /*
+     * Compiles an operator node, reusing the operand of a shared one that
+     * was compiled already.
+     */
+    private int compile(Expression expression, int depth, Token operator) {
+      if (expression instanceof Expression.Group || expression instanceof Expression.Literal
+          || expression instanceof Expression.Variable) {
+        return compileUnshared(expression, depth, operator);
+      }
+      Integer operand = operands.get(expression);
+      if (operand != null) {
+        return operand;
+      }
+      int value = compileUnshared(expression, depth, operator);
+      if (shared.contains(expression)) {
+        if (value >= TEMPORARY) {
+          // The operation that just wrote the temporary writes a kept one.
+          value = KEPT + kept++;
+          targets[count - 1] = value;
+        }
+        operands.put(expression, value);
+      }
+      return value;
+    }
+
+    /*
+     * Returns the operand holding the value of the expression: a variable,
+     * a constant or the temporary for this depth. Operand errors are
+     * reported against the operator using the value.
+     */
+    private int compileUnshared(Expression expression, int depth, Token operator) {
+      if (expression instanceof Expression.Group) {
+        return compile(((Expression.Group) expression).expression, depth, operator);
+      } else if (expression instanceof Expression.Literal) {
+        Object value = ((Expression.Literal) expression).value;
+        if (!(value instanceof Double)) {
+          throw new RuntimeError(operator, operator == null
+              ? "Expression does not produce a number." : "Operand must be a number.");
+        }
+        return constant((Double) value);
+      } else if (expression instanceof Expression.Variable) {
+        return variable(((Expression.Variable) expression).name);
+      } else if (expression instanceof Expression.Unary) {
+        Expression.Unary unary = (Expression.Unary) expression;
+        if (unary.operator.kind != OperatorKind.Minus) {
+          throw unsupported(unary.operator);
+        }
+        int right = compile(unary.right, depth, unary.operator);
+        if (right < 0) {
+          return constant(-constants[~right]);
+        }
+        return emit(NEGATE, depth, right, 0);
+      }
+
+      Expression.Binary binary = (Expression.Binary) expression;
+      byte opcode;
+      switch (binary.operator.kind) {
+      case Plus:
+        opcode = ADD;
+        break;
+      case Minus:
+        opcode = SUBTRACT;
+        break;
+      case Star:
+        opcode = MULTIPLY;
+        break;
+      case Slash:
+        opcode = DIVIDE;
+        break;
+      default:
+        throw unsupported(binary.operator);
+      }
+      int left = compile(binary.left, depth, binary.operator);
+      int right = compile(binary.right, left >= TEMPORARY ? depth + 1 : depth, binary.operator);
+      if (left < 0 && right < 0) {
+        return constant(fold(opcode, constants[~left], constants[~right]));
+      }
+      return emit(opcode, depth, left, right);
+    }
+
+    private static double fold(byte opcode, double left, double right) {
+      switch (opcode) {
+      case ADD:
+        return left + right;
+      case SUBTRACT:
+        return left - right;
+      case MULTIPLY:
+        return left * right;
+      default:
+        return left / right;
+      }
+    }
+
+    private static RuntimeError unsupported(Token operator) {
+      return new RuntimeError(operator, "Operator '" + operator.lexeme + "' cannot be evaluated over columns.");
+    }
+
+    private int variable(Token name) {
+      Integer slot = slots.get(name.lexeme);
+      if (slot == null) {
+        slot = slots.size();
+        slots.put(name.lexeme, slot);
+        uses.add(name);
+      }
+      return slot;
+    }
+
+    private int constant(double value) {
+      if (constantCount == constants.length) {
+        constants = Arrays.copyOf(constants, constantCount * 2);
+      }
+      constants[constantCount] = value;
+      return ~constantCount++;
+    }
+
+    // Appends an operation writing the temporary for depth and returns it.
+    private int emit(byte opcode, int depth, int left, int right) {
+      if (count == opcodes.length) {
+        int capacity = count * 2;
+        opcodes = Arrays.copyOf(opcodes, capacity);
+        targets = Arrays.copyOf(targets, capacity);
+        lefts = Arrays.copyOf(lefts, capacity);
+        rights = Arrays.copyOf(rights, capacity);
+      }
+      int target = depth < 0 ? -1 : TEMPORARY + depth;
+      if (depth >= 0) {
+        temporaries = Math.max(temporaries, depth + 1);
+      }
+      opcodes[count] = opcode;
+      targets[count] = target;
+      lefts[count] = left;
+      rights[count] = right;
+      count++;
+      return target;
+    }
+  }
+}
@@ -0,0 +1,327 @@
+package metal.backend.interpreter;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import metal.backend.RuntimeError;
+import metal.backend.Sharing;
+import static metal.backend.Numeric.isNumeric;
+import metal.frontend.scanner.Token;
+import metal.frontend.scanner.OperatorKind;
+import metal.frontend.parser.grammar.Expression;
+
+// Evaluates expression trees. Numeric subtrees are evaluated through
+// evaluateNumber() so that intermediate results stay primitive doubles and
+// only the root of each numeric subtree is boxed. A tree holding a subtree
+// more than once (see Sharing) is evaluated by a Memoizing interpreter,
+// which evaluates the subtree once per evaluation.
+public class Interpreter implements Expression.Visitor<Object> {
+  Expression.DoubleVisitor numbers = new Numbers();
+  // The last tree analysed, as callers such as TieredExpression evaluate
+  // the same tree over and over.
+  private Analysis last;
+
+  public Object evaluate(Expression expression) {
+    return expression.accept(forTree(expression));
+  }
+
+  /**
+   * Evaluates an expression that must produce a number without boxing
+   * any of the intermediate results.
+   */
+  public double evaluateNumber(Expression expression) {
+    return expression.acceptDouble(forTree(expression).numbers);
+  }
+
+  private Interpreter forTree(Expression expression) {
+    Analysis analysis = last;
+    if (analysis == null || analysis.tree != expression) {
+      analysis = new Analysis(expression, Sharing.sharedNodes(expression));
+      last = analysis;
+    }
+    return analysis.shared.isEmpty() ? this : new Memoizing(analysis.shared);
+  }
+
+  private static final class Analysis {
+    final Expression tree;
+    final Set<Expression> shared;
+
+    Analysis(Expression tree, Set<Expression> shared) {
+      this.tree = tree;
+      this.shared = shared;
+    }
+  }
+
+  class Numbers implements Expression.DoubleVisitor {
+    @Override
+    public double visitBinaryExpression(Expression.Binary expression) {
+      Token operator = expression.operator;
+      switch (operator.kind) {
+      case Plus:
+        return operand(expression.left, operator) + operand(expression.right, operator);
+      case Minus:
+        return operand(expression.left, operator) - operand(expression.right, operator);
+      case Star:
+        return operand(expression.left, operator) * operand(expression.right, operator);
+      case Slash:
+        return operand(expression.left, operator) / operand(expression.right, operator);
+      }
+      return unbox(expression.accept(Interpreter.this), null);
+    }
+
+    @Override
+    public double visitGroupExpression(Expression.Group expression) {
+      return expression.expression.acceptDouble(this);
+    }
+
+    @Override
+    public double visitLiteralExpression(Expression.Literal expression) {
+      return unbox(expression.value, null);
+    }
+
+    @Override
+    public double visitUnaryExpression(Expression.Unary expression) {
+      if (expression.operator.kind == OperatorKind.Minus) {
+        return -operand(expression.right, expression.operator);
+      }
+      return unbox(expression.accept(Interpreter.this), null);
+    }
+
+    @Override
+    public double visitVariableExpression(Expression.Variable expression) {
+      throw undefined(expression);
+    }
+
+    /*
+     * Evaluates the operand of an arithmetic operator. A value that is not
+     * a number is reported against that operator, the one that consumed
+     * it, as the VM and the JIT do; errors already carrying a position are
+     * passed on unchanged.
+     */
+    double operand(Expression operand, Token operator) {
+      if (operand instanceof Expression.Literal) {
+        return unbox(((Expression.Literal) operand).value, operator);
+      }
+      try {
+        return operand.acceptDouble(this);
+      } catch (RuntimeError error) {
+        if (error.token != null) throw error;
+        throw new RuntimeError(operator, error.getMessage());
+      }
+    }
+  }
+
+  // The operator is null when the consumer is not known yet.
+  private static double unbox(Object value, Token operator) {
+    if (value instanceof Double) {
+      return (double) value;
+    }
+    throw new RuntimeError(operator, "Operand must be a number.");
+  }
+
+  @Override
+  public Object visitBinaryExpression(Expression.Binary expression) {
+    switch (expression.operator.kind) {
+    case Minus:
+    case Star:
+    case Slash:
+      return evaluateNumber(expression, expression.operator);
+    case Plus:
+      if (isNumeric(expression)) {
+        return evaluateNumber(expression, expression.operator);
+      }
+      return add(expression);
+    case Greater:
+      return evaluateNumber(expression.left, expression.operator) > evaluateNumber(expression.right, expression.operator);
+    case GreaterEqual:
+      return evaluateNumber(expression.left, expression.operator) >= evaluateNumber(expression.right, expression.operator);
+    case Less:
+      return evaluateNumber(expression.left, expression.operator) < evaluateNumber(expression.right, expression.operator);
+    case LessEqual:
+      return evaluateNumber(expression.left, expression.operator) <= evaluateNumber(expression.right, expression.operator);
+    case EqualEqual:
+      return isEqual(expression.left.accept(this), expression.right.accept(this));
+    case BangEqual:
+      return !isEqual(expression.left.accept(this), expression.right.accept(this));
+    }
+
+    throw new RuntimeError(expression.operator, "Unknown operator '" + expression.operator.lexeme + "'.");
+  }
+
+  /*
+   * Evaluates a + that is not statically numeric. Any + among its operands
+   * is evaluated the same way rather than checked again, so that a chain of
+   * + is checked once instead of once per operator. Such an operand may
+   * still turn out to be numeric, in which case it adds its numbers.
+   */
+  Object add(Expression.Binary expression) {
+    Object left = addOperand(expression.left);
+    Object right = addOperand(expression.right);
+    if (left instanceof Double && right instanceof Double) {
+      return (Double) left + (Double) right;
+    }
+    if (left instanceof String && right instanceof String) {
+      return (String) left + (String) right;
+    }
+    throw new RuntimeError(expression.operator, "Operands must be two numbers or two strings.");
+  }
+
+  Object addOperand(Expression operand) {
+    while (operand instanceof Expression.Group) {
+      operand = ((Expression.Group) operand).expression;
+    }
+    if (operand instanceof Expression.Binary && ((Expression.Binary) operand).operator.kind == OperatorKind.Plus) {
+      return add((Expression.Binary) operand);
+    }
+    return operand.accept(this);
+  }
+
+  @Override
+  public Object visitGroupExpression(Expression.Group expression) {
+    return expression.expression.accept(this);
+  }
+
+  @Override
+  public Object visitLiteralExpression(Expression.Literal expression) {
+    return expression.value;
+  }
+
+  @Override
+  public Object visitUnaryExpression(Expression.Unary expression) {
+    switch (expression.operator.kind) {
+    case Minus:
+      return -evaluateNumber(expression.right, expression.operator);
+    case Bang:
+      return !isTruthy(expression.right.accept(this));
+    }
+
+    throw new RuntimeError(expression.operator, "Unknown operator '" + expression.operator.lexeme + "'.");
+  }
+
+  @Override
+  public Object visitVariableExpression(Expression.Variable expression) {
+    throw undefined(expression);
+  }
+
+  // There are no bindings in a script yet; variables are only given values
+  // by the columnar engine (see metal.backend.columnar).
+  private static RuntimeError undefined(Expression.Variable expression) {
+    return new RuntimeError(expression.name, "Undefined variable '" + expression.name.lexeme + "'.");
+  }
+
+  // Reports numeric errors against the operator being evaluated.
+  private double evaluateNumber(Expression expression, Token operator) {
+    try {
+      return expression.acceptDouble(numbers);
+    } catch (RuntimeError error) {
+      if (error.token != null) throw error;
+      throw new RuntimeError(operator, error.getMessage());
+    }
+  }
+
+  private boolean isTruthy(Object value) {
+    if (value == null) return false;
+    if (value instanceof Boolean) return (boolean) value;
+    return true;
+  }
+
+  private boolean isEqual(Object a, Object b) {
+    if (a == null && b == null) return true;
+    if (a == null) return false;
+    return a.equals(b);
+  }
+
+  /*
+   * Evaluates one tree, remembering the value of each shared subtree the
+   * first time it is evaluated and reusing it at the subtree's other
+   * parents. Only operators are remembered; Sharing leaves out the rest.
+   */
+  private static final class Memoizing extends Interpreter {
+    private final Set<Expression> shared;
+    private final Map<Expression, Object> values = new IdentityHashMap<>();
+
+    Memoizing(Set<Expression> shared) {
+      this.shared = shared;
+      numbers = new RememberedNumbers();
+    }
+
+    @Override
+    public Object visitBinaryExpression(Expression.Binary expression) {
+      Object value = values.get(expression);
+      if (value == null) {
+        value = super.visitBinaryExpression(expression);
+        remember(expression, value);
+      }
+      return value;
+    }
+
+    @Override
+    public Object visitUnaryExpression(Expression.Unary expression) {
+      Object value = values.get(expression);
+      if (value == null) {
+        value = super.visitUnaryExpression(expression);
+        remember(expression, value);
+      }
+      return value;
+    }
+
+    // A shared + goes through visitBinaryExpression() to be remembered.
+    @Override
+    Object addOperand(Expression operand) {
+      while (operand instanceof Expression.Group) {
+        operand = ((Expression.Group) operand).expression;
+      }
+      return shared.contains(operand) ? operand.accept(this) : super.addOperand(operand);
+    }
+
+    private void remember(Expression expression, Object value) {
+      if (shared.contains(expression)) {
+        values.put(expression, value);
+      }
+    }
+
+    private final class RememberedNumbers extends Numbers {
+      @Override
+      public double visitBinaryExpression(Expression.Binary expression) {
+        Object value = values.get(expression);
+        if (value instanceof Double) {
+          return (double) value;
+        }
+        double number = super.visitBinaryExpression(expression);
+        // Values computed through the boxed path are remembered there.
+        if (!values.containsKey(expression)) {
+          remember(expression, number);
+        }
+        return number;
+      }
+
+      @Override
+      public double visitUnaryExpression(Expression.Unary expression) {
+        Object value = values.get(expression);
+        if (value instanceof Double) {
+          return (double) value;
+        }
+        double number = super.visitUnaryExpression(expression);
+        if (!values.containsKey(expression)) {
+          remember(expression, number);
+        }
+        return number;
+      }
+    }
+  }
+
+  public static String stringify(Object value) {
+    if (value == null) return "nil";
+
+    if (value instanceof Double) {
+      String text = value.toString();
+      if (text.endsWith(".0")) {
+        text = text.substring(0, text.length() - 2);
+      }
+      return text;
+    }
+
+    return value.toString();
+  }
+}
@@ -0,0 +1,8 @@
+package metal.backend.jit;
+
+// An expression compiled to a JVM class by the JitCompiler.
+public interface CompiledExpression {
+  Object evaluate();
+
+  double evaluateNumber();
+}
@@ -0,0 +1,547 @@
+package metal.backend.jit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static metal.backend.Numeric.isNumeric;
+import metal.backend.Sharing;
+import metal.frontend.scanner.Token;
+import metal.frontend.scanner.OperatorKind;
+import metal.frontend.parser.grammar.Expression;
+
+// Generates a JVM class implementing CompiledExpression for a single
+// expression tree and loads it as a hidden class, so that HotSpot compiles
+// the expression like handwritten Java. Numeric subtrees become straight
+// double arithmetic; everything else calls into JitRuntime.
+//
+// The generated methods never branch, so the class file needs no
+// StackMapTable and is written by hand without a bytecode library. For the
+// same reason a subtree the tree shares (see Sharing) can be computed once
+// into a local variable and loaded from there at its other uses.
+public final class JitCompiler {
+  private static final String CLASS_NAME = "metal/backend/jit/JitExpression";
+  private static final String RUNTIME = "metal/backend/jit/JitRuntime";
+  private static final String OBJECT = "java/lang/Object";
+
+  private static final int ACC_PUBLIC = 0x0001;
+  private static final int ACC_FINAL = 0x0010;
+  private static final int ACC_SUPER = 0x0020;
+
+  /* Opcodes */
+  private static final int ACONST_NULL = 0x01;
+  private static final int LDC_W = 0x13;
+  private static final int LDC2_W = 0x14;
+  private static final int DLOAD = 0x18;
+  private static final int ALOAD = 0x19;
+  private static final int ALOAD_0 = 0x2a;
+  private static final int DSTORE = 0x39;
+  private static final int ASTORE = 0x3a;
+  private static final int DUP = 0x59;
+  private static final int DUP2 = 0x5c;
+  private static final int DADD = 0x63;
+  private static final int DSUB = 0x67;
+  private static final int DMUL = 0x6b;
+  private static final int DDIV = 0x6f;
+  private static final int DNEG = 0x77;
+  private static final int DRETURN = 0xaf;
+  private static final int ARETURN = 0xb0;
+  private static final int RETURN = 0xb1;
+  private static final int GETSTATIC = 0xb2;
+  private static final int INVOKESPECIAL = 0xb7;
+  private static final int INVOKESTATIC = 0xb8;
+  private static final int WIDE = 0xc4;
+
+  private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+  private final ConstantPool pool = new ConstantPool();
+  private Set<Expression> shared = Collections.emptySet();
+  private final Map<Expression, Integer> numberLocals = new IdentityHashMap<>();
+  private final Map<Expression, Integer> valueLocals = new IdentityHashMap<>();
+  private ByteArrayOutputStream code;
+  private int depth;
+  private int maxDepth;
+  private int maxLocals;
+
+  private JitCompiler() {}
+
+  /**
+   * Compiles an expression into a freshly loaded hidden class.
+   */
+  public static CompiledExpression compile(Expression expression) {
+    byte[] bytes = new JitCompiler().generate(expression);
+    try {
+      MethodHandles.Lookup hidden = lookup.defineHiddenClass(bytes, true);
+      return (CompiledExpression) hidden.findConstructor(hidden.lookupClass(), MethodType.methodType(void.class)).invoke();
+    } catch (Throwable error) {
+      throw new IllegalStateException("Could not load compiled expression.", error);
+    }
+  }
+
+  private byte[] generate(Expression expression) {
+    int thisClass = pool.classRef(CLASS_NAME);
+    int superClass = pool.classRef(OBJECT);
+    int interfaceClass = pool.classRef("metal/backend/jit/CompiledExpression");
+    boolean numeric = isNumeric(expression);
+    shared = Sharing.sharedNodes(expression);
+
+    byte[] init = method(() -> {
+      op(ALOAD_0, 1);
+      op(INVOKESPECIAL, -1);
+      u2(pool.methodRef(OBJECT, "<init>", "()V"));
+      op(RETURN, 0);
+    });
+    byte[] evaluate = method(() -> {
+      if (numeric) {
+        boxed(expression);
+      } else {
+        compileValue(expression);
+      }
+      op(ARETURN, -1);
+    });
+    byte[] evaluateNumber = method(() -> {
+      if (numeric) {
+        compileNumber(expression);
+      } else {
+        compileValue(expression);
+        unbox(null);
+      }
+      op(DRETURN, -2);
+    });
+
+    int initName = pool.utf8("<init>");
+    int initType = pool.utf8("()V");
+    int evaluateName = pool.utf8("evaluate");
+    int evaluateType = pool.utf8("()Ljava/lang/Object;");
+    int evaluateNumberName = pool.utf8("evaluateNumber");
+    int evaluateNumberType = pool.utf8("()D");
+    int codeName = pool.utf8("Code");
+
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0);
+      out.writeShort(52);
+      pool.write(out);
+      out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(1);
+      out.writeShort(interfaceClass);
+      out.writeShort(0); // fields
+      out.writeShort(3); // methods
+      writeMethod(out, initName, initType, codeName, init);
+      writeMethod(out, evaluateName, evaluateType, codeName, evaluate);
+      writeMethod(out, evaluateNumberName, evaluateNumberType, codeName, evaluateNumber);
+      out.writeShort(0); // attributes
+      return bytes.toByteArray();
+    } catch (IOException error) {
+      throw new UncheckedIOException(error);
+    }
+  }
+
+  private void writeMethod(DataOutputStream out, int name, int type, int codeName, byte[] body) throws IOException {
+    out.writeShort(ACC_PUBLIC);
+    out.writeShort(name);
+    out.writeShort(type);
+    out.writeShort(1);
+    out.writeShort(codeName);
+    out.writeInt(body.length);
+    out.write(body);
+  }
+
+  /*
+   * Assembles a Code attribute body from the instructions emitted by the
+   * given generator.
+   */
+  private byte[] method(Runnable generator) {
+    code = new ByteArrayOutputStream();
+    depth = 0;
+    maxDepth = 0;
+    numberLocals.clear();
+    valueLocals.clear();
+    maxLocals = 1; // this
+    generator.run();
+    byte[] instructions = code.toByteArray();
+    if (instructions.length > 0xffff) {
+      throw new IllegalStateException("Expression is too large to compile.");
+    }
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(body);
+    try {
+      out.writeShort(maxDepth);
+      out.writeShort(maxLocals);
+      out.writeInt(instructions.length);
+      out.write(instructions);
+      out.writeShort(0); // exception table
+      out.writeShort(0); // attributes
+    } catch (IOException error) {
+      throw new UncheckedIOException(error);
+    }
+    return body.toByteArray();
+  }
+
+  /*
+   * Emits code that leaves the value of the expression on the stack as a
+   * double. Values that are not statically numeric are checked at runtime
+   * and reported against the given operator.
+   */
+  private void compileNumber(Expression expression, Token operator) {
+    if (expression instanceof Expression.Binary) {
+      Expression.Binary binary = (Expression.Binary) expression;
+      int opcode = -1;
+      switch (binary.operator.kind) {
+      case Plus:
+        opcode = DADD;
+        break;
+      case Minus:
+        opcode = DSUB;
+        break;
+      case Star:
+        opcode = DMUL;
+        break;
+      case Slash:
+        opcode = DDIV;
+        break;
+      }
+      if (opcode != -1) {
+        if (load(expression, numberLocals, DLOAD, 2)) {
+          return;
+        }
+        compileNumber(binary.left, binary.operator);
+        compileNumber(binary.right, binary.operator);
+        op(opcode, -2);
+        store(expression, numberLocals, DSTORE, 2);
+        return;
+      }
+    } else if (expression instanceof Expression.Unary) {
+      Expression.Unary unary = (Expression.Unary) expression;
+      if (unary.operator.kind == OperatorKind.Minus) {
+        if (load(expression, numberLocals, DLOAD, 2)) {
+          return;
+        }
+        compileNumber(unary.right, unary.operator);
+        op(DNEG, 0);
+        store(expression, numberLocals, DSTORE, 2);
+        return;
+      }
+    } else if (expression instanceof Expression.Group) {
+      compileNumber(((Expression.Group) expression).expression, operator);
+      return;
+    } else if (expression instanceof Expression.Literal) {
+      Object value = ((Expression.Literal) expression).value;
+      if (value instanceof Double) {
+        op(LDC2_W, 2);
+        u2(pool.doubleConstant((Double) value));
+        return;
+      }
+    }
+
+    compileValue(expression);
+    unbox(operator);
+  }
+
+  private void compileNumber(Expression expression) {
+    compileNumber(expression, null);
+  }
+
+  /*
+   * Emits code that leaves the value of the expression on the stack as an
+   * Object.
+   */
+  private void compileValue(Expression expression) {
+    if (load(expression, valueLocals, ALOAD, 1)) {
+      return;
+    }
+    compileUnshared(expression);
+    // Numeric subtrees were stored as doubles already.
+    if (!numberLocals.containsKey(expression)) {
+      store(expression, valueLocals, ASTORE, 1);
+    }
+  }
+
+  private void compileUnshared(Expression expression) {
+    if (expression instanceof Expression.Group) {
+      compileValue(((Expression.Group) expression).expression);
+    } else if (expression instanceof Expression.Literal) {
+      literal(((Expression.Literal) expression).value);
+    } else if (expression instanceof Expression.Unary) {
+      Expression.Unary unary = (Expression.Unary) expression;
+      switch (unary.operator.kind) {
+      case Minus:
+        boxed(expression);
+        return;
+      case Bang:
+        compileValue(unary.right);
+        invokestatic(RUNTIME, "not", "(Ljava/lang/Object;)Ljava/lang/Object;", 0);
+        return;
+      }
+      throw new IllegalStateException("Unknown operator '" + unary.operator.lexeme + "'.");
+    } else if (expression instanceof Expression.Binary) {
+      binary((Expression.Binary) expression);
+    } else if (expression instanceof Expression.Variable) {
+      Token name = ((Expression.Variable) expression).name;
+      op(LDC_W, 1);
+      u2(pool.stringConstant(name.lexeme));
+      position(name);
+      invokestatic(RUNTIME, "get", "(Ljava/lang/String;II)Ljava/lang/Object;", -2);
+    } else {
+      throw new IllegalStateException("Cannot compile " + expression.getClass().getSimpleName() + ".");
+    }
+  }
+
+  /*
+   * Emits a load of the local a shared subtree was stored in, if it has
+   * one.
+   */
+  private boolean load(Expression expression, Map<Expression, Integer> locals, int opcode, int size) {
+    Integer local = locals.get(expression);
+    if (local == null) {
+      return false;
+    }
+    op(WIDE, 0);
+    op(opcode, size);
+    u2(local);
+    return true;
+  }
+
+  /*
+   * Copies the value just computed for a shared subtree into a new local.
+   * Once the locals run out shared subtrees are simply computed again.
+   */
+  private void store(Expression expression, Map<Expression, Integer> locals, int opcode, int size) {
+    if (!shared.contains(expression) || maxLocals + size > 0xffff) {
+      return;
+    }
+    int local = maxLocals;
+    maxLocals += size;
+    locals.put(expression, local);
+    op(size == 2 ? DUP2 : DUP, size);
+    op(WIDE, 0);
+    op(opcode, -size);
+    u2(local);
+  }
+
+  private void boxed(Expression expression) {
+    compileNumber(expression);
+    invokestatic("java/lang/Double", "valueOf", "(D)Ljava/lang/Double;", -1);
+  }
+
+  private void binary(Expression.Binary expression) {
+    switch (expression.operator.kind) {
+    case Minus:
+    case Star:
+    case Slash:
+      boxed(expression);
+      return;
+    case Plus:
+      if (isNumeric(expression)) {
+        boxed(expression);
+        return;
+      }
+      compileValue(expression.left);
+      compileValue(expression.right);
+      position(expression.operator);
+      invokestatic(RUNTIME, "add", "(Ljava/lang/Object;Ljava/lang/Object;II)Ljava/lang/Object;", -3);
+      return;
+    case Greater:
+      comparison(expression, "greater");
+      return;
+    case GreaterEqual:
+      comparison(expression, "greaterEqual");
+      return;
+    case Less:
+      comparison(expression, "less");
+      return;
+    case LessEqual:
+      comparison(expression, "lessEqual");
+      return;
+    case EqualEqual:
+      compileValue(expression.left);
+      compileValue(expression.right);
+      invokestatic(RUNTIME, "equal", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;", -1);
+      return;
+    case BangEqual:
+      compileValue(expression.left);
+      compileValue(expression.right);
+      invokestatic(RUNTIME, "notEqual", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;", -1);
+      return;
+    }
+
+    throw new IllegalStateException("Unknown operator '" + expression.operator.lexeme + "'.");
+  }
+
+  private void comparison(Expression.Binary expression, String helper) {
+    compileNumber(expression.left, expression.operator);
+    compileNumber(expression.right, expression.operator);
+    invokestatic(RUNTIME, helper, "(DD)Ljava/lang/Object;", -3);
+  }
+
+  private void literal(Object value) {
+    if (value == null) {
+      op(ACONST_NULL, 1);
+    } else if (value instanceof Boolean) {
+      op(GETSTATIC, 1);
+      u2(pool.fieldRef("java/lang/Boolean", (Boolean) value ? "TRUE" : "FALSE", "Ljava/lang/Boolean;"));
+    } else if (value instanceof Double) {
+      op(LDC2_W, 2);
+      u2(pool.doubleConstant((Double) value));
+      invokestatic("java/lang/Double", "valueOf", "(D)Ljava/lang/Double;", -1);
+    } else if (value instanceof String) {
+      op(LDC_W, 1);
+      u2(pool.stringConstant((String) value));
+    } else {
+      throw new IllegalStateException("Cannot compile literal " + value + ".");
+    }
+  }
+
+  /*
+   * Converts the Object on top of the stack into a double, failing at the
+   * given operator if it is not a number.
+   */
+  private void unbox(Token operator) {
+    position(operator);
+    invokestatic(RUNTIME, "unbox", "(Ljava/lang/Object;II)D", -1);
+  }
+
+  private void position(Token token) {
+    op(LDC_W, 1);
+    u2(pool.intConstant(token == null ? 0 : token.line));
+    op(LDC_W, 1);
+    u2(pool.intConstant(token == null ? 0 : token.column));
+  }
+
+  private void invokestatic(String owner, String name, String descriptor, int effect) {
+    op(INVOKESTATIC, effect);
+    u2(pool.methodRef(owner, name, descriptor));
+  }
+
+  /*
+   * Emits an opcode and records its effect on the operand stack, in slots.
+   */
+  private void op(int opcode, int effect) {
+    code.write(opcode);
+    depth += effect;
+    maxDepth = Math.max(maxDepth, depth);
+  }
+
+  private void u2(int value) {
+    code.write(value >> 8);
+    code.write(value);
+  }
+
+  private static class ConstantPool {
+    private static final int UTF8 = 1;
+    private static final int INTEGER = 3;
+    private static final int DOUBLE = 6;
+    private static final int CLASS = 7;
+    private static final int STRING = 8;
+    private static final int FIELD_REF = 9;
+    private static final int METHOD_REF = 10;
+    private static final int NAME_AND_TYPE = 12;
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(bytes);
+    private final Map<String, Integer> entries = new HashMap<>();
+    private int count = 1;
+
+    int utf8(String value) {
+      return entry("U" + value, 1, () -> {
+        out.writeByte(UTF8);
+        out.writeUTF(value);
+      });
+    }
+
+    int intConstant(int value) {
+      return entry("I" + value, 1, () -> {
+        out.writeByte(INTEGER);
+        out.writeInt(value);
+      });
+    }
+
+    int doubleConstant(double value) {
+      return entry("D" + Double.doubleToRawLongBits(value), 2, () -> {
+        out.writeByte(DOUBLE);
+        out.writeDouble(value);
+      });
+    }
+
+    int stringConstant(String value) {
+      int utf8 = utf8(value);
+      return entry("S" + value, 1, () -> {
+        out.writeByte(STRING);
+        out.writeShort(utf8);
+      });
+    }
+
+    int classRef(String name) {
+      int utf8 = utf8(name);
+      return entry("C" + name, 1, () -> {
+        out.writeByte(CLASS);
+        out.writeShort(utf8);
+      });
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+      return memberRef(FIELD_REF, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+      return memberRef(METHOD_REF, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+      int ownerClass = classRef(owner);
+      int nameUtf8 = utf8(name);
+      int descriptorUtf8 = utf8(descriptor);
+      int nameAndType = entry("N" + name + ":" + descriptor, 1, () -> {
+        out.writeByte(NAME_AND_TYPE);
+        out.writeShort(nameUtf8);
+        out.writeShort(descriptorUtf8);
+      });
+      return entry("M" + tag + owner + "." + name + ":" + descriptor, 1, () -> {
+        out.writeByte(tag);
+        out.writeShort(ownerClass);
+        out.writeShort(nameAndType);
+      });
+    }
+
+    private int entry(String key, int slots, Entry writer) {
+      Integer index = entries.get(key);
+      if (index != null) {
+        return index;
+      }
+      if (count + slots > 0xffff) {
+        throw new IllegalStateException("Too many constants in one expression.");
+      }
+      try {
+        writer.write();
+      } catch (IOException error) {
+        throw new UncheckedIOException(error);
+      }
+      index = count;
+      count += slots;
+      entries.put(key, index);
+      return index;
+    }
+
+    void write(DataOutputStream target) throws IOException {
+      target.writeShort(count);
+      bytes.writeTo(target);
+    }
+
+    private interface Entry {
+      void write() throws IOException;
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package metal.backend.jit;
+
+import metal.backend.RuntimeError;
+import metal.frontend.scanner.Token;
+import metal.frontend.scanner.TokenType;
+
+// Helpers invoked from JIT compiled expressions for the operations that are
+// not plain double arithmetic. They are small enough for HotSpot to inline.
+final class JitRuntime {
+
+  private JitRuntime() {}
+
+  static double unbox(Object value, int line, int column) {
+    if (value instanceof Double) {
+      return (Double) value;
+    }
+    throw error("Operand must be a number.", line, column);
+  }
+
+  static Object add(Object left, Object right, int line, int column) {
+    if (left instanceof Double && right instanceof Double) {
+      return (Double) left + (Double) right;
+    }
+    if (left instanceof String && right instanceof String) {
+      return (String) left + (String) right;
+    }
+    throw error("Operands must be two numbers or two strings.", line, column);
+  }
+
+  // Scripts cannot bind variables yet, so reading one always fails.
+  static Object get(String name, int line, int column) {
+    throw error("Undefined variable '" + name + "'.", line, column);
+  }
+
+  static Object greater(double left, double right) {
+    return left > right;
+  }
+
+  static Object greaterEqual(double left, double right) {
+    return left >= right;
+  }
+
+  static Object less(double left, double right) {
+    return left < right;
+  }
+
+  static Object lessEqual(double left, double right) {
+    return left <= right;
+  }
+
+  static Object equal(Object left, Object right) {
+    return isEqual(left, right);
+  }
+
+  static Object notEqual(Object left, Object right) {
+    return !isEqual(left, right);
+  }
+
+  static Object not(Object value) {
+    if (value == null) return true;
+    if (value instanceof Boolean) return !(Boolean) value;
+    return false;
+  }
+
+  private static boolean isEqual(Object a, Object b) {
+    if (a == null && b == null) return true;
+    if (a == null) return false;
+    return a.equals(b);
+  }
+
+  private static RuntimeError error(String message, int line, int column) {
+    return new RuntimeError(new Token(TokenType.Operator, "", null, line, column), message);
+  }
+}
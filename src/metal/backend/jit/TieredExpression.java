@@ -0,0 +1,69 @@
+package metal.backend.jit;
+
+import metal.backend.interpreter.Interpreter;
+import metal.frontend.parser.grammar.Expression;
+
+// Evaluates an expression with the Interpreter until it has been invoked
+// `threshold` times, then compiles it with the JitCompiler and runs the
+// compiled class from then on. If compilation fails, the expression keeps
+// running in the interpreter. Not thread safe; keep one per thread.
+public class TieredExpression {
+  public static final int DEFAULT_THRESHOLD = Integer.getInteger("metal.jit.threshold", 10_000);
+
+  private final Expression expression;
+  private final Interpreter interpreter;
+  private final int threshold;
+  private int invocations = 0;
+  private CompiledExpression compiled;
+  private boolean failed = false;
+
+  public TieredExpression(Expression expression, Interpreter interpreter) {
+    this(expression, interpreter, DEFAULT_THRESHOLD);
+  }
+
+  public TieredExpression(Expression expression, Interpreter interpreter, int threshold) {
+    this.expression = expression;
+    this.interpreter = interpreter;
+    this.threshold = threshold;
+  }
+
+  public Object evaluate() {
+    CompiledExpression compiled = this.compiled;
+    if (compiled != null || (compiled = tick()) != null) {
+      return compiled.evaluate();
+    }
+    return interpreter.evaluate(expression);
+  }
+
+  public double evaluateNumber() {
+    CompiledExpression compiled = this.compiled;
+    if (compiled != null || (compiled = tick()) != null) {
+      return compiled.evaluateNumber();
+    }
+    return interpreter.evaluateNumber(expression);
+  }
+
+  public Expression expression() {
+    return expression;
+  }
+
+  public boolean isCompiled() {
+    return compiled != null;
+  }
+
+  /*
+   * Counts an interpreted invocation and compiles the expression once it
+   * crosses the threshold.
+   */
+  private CompiledExpression tick() {
+    if (failed || ++invocations < threshold) {
+      return null;
+    }
+    try {
+      compiled = JitCompiler.compile(expression);
+    } catch (RuntimeException error) {
+      failed = true;
+    }
+    return compiled;
+  }
+}
@@ -0,0 +1,357 @@
+package metal.backend.vm;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static metal.backend.Numeric.isNumeric;
+import metal.backend.Sharing;
+import metal.frontend.scanner.Token;
+import metal.frontend.scanner.OperatorKind;
+import metal.frontend.parser.grammar.Expression;
+
+// Lowers an expression tree into a Chunk. Subtrees that are statically
+// numeric are compiled to double lane instructions so that the VM never
+// boxes their intermediate results. A subtree the tree holds more than once
+// (see Sharing) is computed where it is first used and stored in a slot,
+// since the code never branches, and loaded from there everywhere else.
+public class BytecodeCompiler implements Expression.Visitor<Void> {
+  private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+  private int[] lines = new int[64];
+  private int[] columns = new int[64];
+
+  private final List<Double> numbers = new ArrayList<>();
+  private final Map<Double, Integer> numberIndices = new HashMap<>();
+  private final List<Object> constants = new ArrayList<>();
+  private final Map<Object, Integer> constantIndices = new HashMap<>();
+
+  private Set<Expression> shared;
+  private final Map<Expression, Integer> numberSlots = new IdentityHashMap<>();
+  private final Map<Expression, Integer> valueSlots = new IdentityHashMap<>();
+
+  private int numberDepth = 0;
+  private int maxNumbers = 0;
+  private int valueDepth = 0;
+  private int maxValues = 0;
+
+  // Token the emitted instructions are attributed to.
+  private Token position;
+
+  public static Chunk compile(Expression expression) {
+    return new BytecodeCompiler().compileChunk(expression);
+  }
+
+  private Chunk compileChunk(Expression expression) {
+    shared = Sharing.sharedNodes(expression);
+    if (isNumeric(expression)) {
+      compileNumber(expression);
+      emit(OpCode.DRETURN, 1, 0);
+    } else {
+      compileValue(expression);
+      emit(OpCode.RETURN, 0, 1);
+    }
+
+    double[] pool = new double[numbers.size()];
+    for (int i = 0; i < pool.length; i++) {
+      pool[i] = numbers.get(i);
+    }
+    int length = code.size();
+    return new Chunk(code.toByteArray(), pool, constants.toArray(),
+        Arrays.copyOf(lines, length), Arrays.copyOf(columns, length), maxNumbers, maxValues,
+        numberSlots.size(), valueSlots.size());
+  }
+
+  /*
+   * Emits code that leaves the value of the expression on the double lane.
+   */
+  private void compileNumber(Expression expression) {
+    if (expression instanceof Expression.Binary) {
+      Expression.Binary binary = (Expression.Binary) expression;
+      byte opcode = -1;
+      switch (binary.operator.kind) {
+      case Plus:
+        opcode = OpCode.DADD;
+        break;
+      case Minus:
+        opcode = OpCode.DSUBTRACT;
+        break;
+      case Star:
+        opcode = OpCode.DMULTIPLY;
+        break;
+      case Slash:
+        opcode = OpCode.DDIVIDE;
+        break;
+      }
+      if (opcode != -1) {
+        if (load(expression, numberSlots, OpCode.DLOAD)) {
+          numberPush();
+          return;
+        }
+        compileNumber(binary.left, binary.operator);
+        compileNumber(binary.right, binary.operator);
+        at(binary.operator);
+        emit(opcode, 2, 0);
+        numberPush();
+        store(expression, numberSlots, OpCode.DSTORE);
+        return;
+      }
+    } else if (expression instanceof Expression.Unary) {
+      Expression.Unary unary = (Expression.Unary) expression;
+      if (unary.operator.kind == OperatorKind.Minus) {
+        if (load(expression, numberSlots, OpCode.DLOAD)) {
+          numberPush();
+          return;
+        }
+        compileNumber(unary.right, unary.operator);
+        at(unary.operator);
+        emit(OpCode.DNEGATE, 1, 0);
+        numberPush();
+        store(expression, numberSlots, OpCode.DSTORE);
+        return;
+      }
+    } else if (expression instanceof Expression.Group) {
+      compileNumber(((Expression.Group) expression).expression);
+      return;
+    } else if (expression instanceof Expression.Literal) {
+      Object value = ((Expression.Literal) expression).value;
+      if (value instanceof Double) {
+        emitIndexed(OpCode.DCONST, number((Double) value));
+        numberPush();
+        return;
+      }
+    }
+
+    // Not statically numeric; check the value at runtime.
+    Token operator = position;
+    compileValue(expression);
+    at(operator);
+    emit(OpCode.UNBOX, 0, 1);
+    numberPush();
+  }
+
+  private void compileNumber(Expression expression, Token operator) {
+    at(operator);
+    compileNumber(expression);
+  }
+
+  /*
+   * Emits code that leaves the value of the expression on the value lane.
+   */
+  private void compileValue(Expression expression) {
+    if (load(expression, valueSlots, OpCode.LOAD)) {
+      valuePush();
+      return;
+    }
+    expression.accept(this);
+    // Numeric subtrees were stored on the double lane already.
+    if (!numberSlots.containsKey(expression)) {
+      store(expression, valueSlots, OpCode.STORE);
+    }
+  }
+
+  @Override
+  public Void visitBinaryExpression(Expression.Binary expression) {
+    at(expression.operator);
+    switch (expression.operator.kind) {
+    case Minus:
+    case Star:
+    case Slash:
+      boxed(expression);
+      return null;
+    case Plus:
+      if (isNumeric(expression)) {
+        boxed(expression);
+        return null;
+      }
+      compileValue(expression.left);
+      compileValue(expression.right);
+      at(expression.operator);
+      emit(OpCode.ADD, 0, 2);
+      valuePush();
+      return null;
+    case Greater:
+      comparison(expression, OpCode.DGREATER);
+      return null;
+    case GreaterEqual:
+      comparison(expression, OpCode.DGREATER_EQUAL);
+      return null;
+    case Less:
+      comparison(expression, OpCode.DLESS);
+      return null;
+    case LessEqual:
+      comparison(expression, OpCode.DLESS_EQUAL);
+      return null;
+    case EqualEqual:
+      compileValue(expression.left);
+      compileValue(expression.right);
+      emit(OpCode.EQUAL, 0, 2);
+      valuePush();
+      return null;
+    case BangEqual:
+      compileValue(expression.left);
+      compileValue(expression.right);
+      emit(OpCode.NOT_EQUAL, 0, 2);
+      valuePush();
+      return null;
+    }
+
+    throw new IllegalStateException("Unknown operator '" + expression.operator.lexeme + "'.");
+  }
+
+  @Override
+  public Void visitGroupExpression(Expression.Group expression) {
+    compileValue(expression.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpression(Expression.Literal expression) {
+    emitIndexed(OpCode.CONST, constant(expression.value));
+    valuePush();
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpression(Expression.Unary expression) {
+    at(expression.operator);
+    switch (expression.operator.kind) {
+    case Minus:
+      boxed(expression);
+      return null;
+    case Bang:
+      compileValue(expression.right);
+      emit(OpCode.NOT, 0, 1);
+      valuePush();
+      return null;
+    }
+
+    throw new IllegalStateException("Unknown operator '" + expression.operator.lexeme + "'.");
+  }
+
+  @Override
+  public Void visitVariableExpression(Expression.Variable expression) {
+    at(expression.name);
+    emitIndexed(OpCode.GET, constant(expression.name.lexeme));
+    valuePush();
+    return null;
+  }
+
+  private void boxed(Expression expression) {
+    compileNumber(expression);
+    emit(OpCode.BOX, 1, 0);
+    valuePush();
+  }
+
+  private void comparison(Expression.Binary expression, byte opcode) {
+    compileNumber(expression.left, expression.operator);
+    compileNumber(expression.right, expression.operator);
+    at(expression.operator);
+    emit(opcode, 2, 0);
+    valuePush();
+  }
+
+  /*
+   * Emits a load of the slot a shared subtree was stored in, if it has
+   * one.
+   */
+  private boolean load(Expression expression, Map<Expression, Integer> slots, byte opcode) {
+    Integer slot = slots.get(expression);
+    if (slot == null) {
+      return false;
+    }
+    emit(opcode, 0, 0);
+    emitShort(slot);
+    return true;
+  }
+
+  /*
+   * Stores the value just computed for a shared subtree in a new slot.
+   * Beyond 65536 slots shared subtrees are simply computed again.
+   */
+  private void store(Expression expression, Map<Expression, Integer> slots, byte opcode) {
+    if (!shared.contains(expression) || slots.size() > 0xffff) {
+      return;
+    }
+    int slot = slots.size();
+    slots.put(expression, slot);
+    emit(opcode, 0, 0);
+    emitShort(slot);
+  }
+
+  private void at(Token token) {
+    position = token;
+  }
+
+  /*
+   * Appends an opcode, popping the given number of operands off each lane.
+   */
+  private void emit(byte opcode, int numberPops, int valuePops) {
+    numberDepth -= numberPops;
+    valueDepth -= valuePops;
+    emitByte(opcode);
+  }
+
+  /*
+   * Appends an instruction that takes a constant index, prefixed with WIDE
+   * when the index does not fit in two bytes.
+   */
+  private void emitIndexed(byte opcode, int index) {
+    if (index > 0xffff) {
+      emit(OpCode.WIDE, 0, 0);
+      emitByte(opcode);
+      emitShort(index >>> 16);
+    } else {
+      emit(opcode, 0, 0);
+    }
+    emitShort(index);
+  }
+
+  private void emitShort(int value) {
+    emitByte((byte) (value >> 8));
+    emitByte((byte) value);
+  }
+
+  private void emitByte(byte value) {
+    int offset = code.size();
+    if (offset == lines.length) {
+      lines = Arrays.copyOf(lines, offset * 2);
+      columns = Arrays.copyOf(columns, offset * 2);
+    }
+    lines[offset] = position == null ? 0 : position.line;
+    columns[offset] = position == null ? 0 : position.column;
+    code.write(value);
+  }
+
+  private void numberPush() {
+    maxNumbers = Math.max(maxNumbers, ++numberDepth);
+  }
+
+  private void valuePush() {
+    maxValues = Math.max(maxValues, ++valueDepth);
+  }
+
+  private int number(Double value) {
+    Integer index = numberIndices.get(value);
+    if (index == null) {
+      index = numbers.size();
+      numbers.add(value);
+      numberIndices.put(value, index);
+    }
+    return index;
+  }
+
+  private int constant(Object value) {
+    Integer index = constantIndices.get(value);
+    if (index == null) {
+      index = constants.size();
+      constants.add(value);
+      constantIndices.put(value, index);
+    }
+    return index;
+  }
+}
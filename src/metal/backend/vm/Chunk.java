@@ -0,0 +1,161 @@
+package metal.backend.vm;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+// A compiled expression: a flat instruction stream plus its constant pools.
+public class Chunk {
+  private static final int MAGIC = 0x4D544C43; // "MTLC"
+  private static final int VERSION = 4;
+
+  private static final byte TAG_NIL = 0;
+  private static final byte TAG_BOOLEAN = 1;
+  private static final byte TAG_NUMBER = 2;
+  private static final byte TAG_STRING = 3;
+
+  public final byte[] code;
+  public final double[] numbers;
+  public final Object[] constants;
+  // Source position of every byte in code, used for runtime errors.
+  public final int[] lines;
+  public final int[] columns;
+  // Deepest the double and value lanes get while running the chunk.
+  public final int maxNumbers;
+  public final int maxValues;
+  // Slots used by DSTORE and STORE.
+  public final int numberSlots;
+  public final int valueSlots;
+
+  public Chunk(byte[] code, double[] numbers, Object[] constants, int[] lines, int[] columns, int maxNumbers, int maxValues,
+      int numberSlots, int valueSlots) {
+    this.code = code;
+    this.numbers = numbers;
+    this.constants = constants;
+    this.lines = lines;
+    this.columns = columns;
+    this.maxNumbers = maxNumbers;
+    this.maxValues = maxValues;
+    this.numberSlots = numberSlots;
+    this.valueSlots = valueSlots;
+  }
+
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(maxNumbers);
+    out.writeInt(maxValues);
+    out.writeInt(numberSlots);
+    out.writeInt(valueSlots);
+
+    out.writeInt(numbers.length);
+    for (double number : numbers) {
+      out.writeDouble(number);
+    }
+
+    out.writeInt(constants.length);
+    for (Object constant : constants) {
+      if (constant == null) {
+        out.writeByte(TAG_NIL);
+      } else if (constant instanceof Boolean) {
+        out.writeByte(TAG_BOOLEAN);
+        out.writeBoolean((Boolean) constant);
+      } else if (constant instanceof Double) {
+        out.writeByte(TAG_NUMBER);
+        out.writeDouble((Double) constant);
+      } else {
+        out.writeByte(TAG_STRING);
+        out.writeUTF(constant.toString());
+      }
+    }
+
+    out.writeInt(code.length);
+    out.write(code);
+    for (int i = 0; i < code.length; i++) {
+      out.writeInt(lines[i]);
+      out.writeInt(columns[i]);
+    }
+  }
+
+  public static Chunk read(DataInput in) throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a compiled Metal chunk.");
+    }
+    int version = in.readInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported chunk version " + version + ".");
+    }
+    int maxNumbers = in.readInt();
+    int maxValues = in.readInt();
+    int numberSlots = in.readInt();
+    int valueSlots = in.readInt();
+
+    double[] numbers = new double[in.readInt()];
+    for (int i = 0; i < numbers.length; i++) {
+      numbers[i] = in.readDouble();
+    }
+
+    Object[] constants = new Object[in.readInt()];
+    for (int i = 0; i < constants.length; i++) {
+      byte tag = in.readByte();
+      switch (tag) {
+      case TAG_NIL:
+        constants[i] = null;
+        break;
+      case TAG_BOOLEAN:
+        constants[i] = in.readBoolean();
+        break;
+      case TAG_NUMBER:
+        constants[i] = in.readDouble();
+        break;
+      case TAG_STRING:
+        constants[i] = in.readUTF();
+        break;
+      default:
+        throw new IOException("Unknown constant tag " + tag + ".");
+      }
+    }
+
+    byte[] code = new byte[in.readInt()];
+    in.readFully(code);
+    int[] lines = new int[code.length];
+    int[] columns = new int[code.length];
+    for (int i = 0; i < code.length; i++) {
+      lines[i] = in.readInt();
+      columns[i] = in.readInt();
+    }
+
+    return new Chunk(code, numbers, constants, lines, columns, maxNumbers, maxValues, numberSlots, valueSlots);
+  }
+
+  /**
+   * Disassembles the chunk, one instruction per line.
+   */
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    int offset = 0;
+    while (offset < code.length) {
+      byte opcode = code[offset];
+      builder.append(String.format("%04d %4d ", offset, lines[offset])).append(OpCode.nameOf(opcode));
+      int length = 1 + OpCode.operandBytes(opcode);
+      int index = -1;
+      if (opcode == OpCode.WIDE) {
+        opcode = code[offset + 1];
+        builder.append(' ').append(OpCode.nameOf(opcode));
+        index = (code[offset + 2] & 0xff) << 24 | (code[offset + 3] & 0xff) << 16
+            | (code[offset + 4] & 0xff) << 8 | (code[offset + 5] & 0xff);
+      } else if (OpCode.operandBytes(opcode) == 2) {
+        index = ((code[offset + 1] & 0xff) << 8) | (code[offset + 2] & 0xff);
+      }
+      if (opcode == OpCode.DLOAD || opcode == OpCode.DSTORE || opcode == OpCode.LOAD || opcode == OpCode.STORE) {
+        builder.append(' ').append(index);
+      } else if (index >= 0) {
+        Object value = opcode == OpCode.DCONST ? numbers[index] : constants[index];
+        builder.append(' ').append(index).append(" '").append(value).append('\'');
+      }
+      builder.append('\n');
+      offset += length;
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,94 @@
+package metal.backend.vm;
+
+// Instruction set of the VM. Instructions prefixed with D operate on the
+// double lane of the operand stack, everything else on the value lane.
+public final class OpCode {
+  /* Double lane */
+
+  // DCONST index:u16 -> pushes numbers[index]
+  public static final byte DCONST = 0;
+  public static final byte DADD = 1;
+  public static final byte DSUBTRACT = 2;
+  public static final byte DMULTIPLY = 3;
+  public static final byte DDIVIDE = 4;
+  public static final byte DNEGATE = 5;
+  // Pop two doubles, push a Boolean on the value lane.
+  public static final byte DGREATER = 6;
+  public static final byte DGREATER_EQUAL = 7;
+  public static final byte DLESS = 8;
+  public static final byte DLESS_EQUAL = 9;
+  // DLOAD slot:u16 -> pushes the double in slot. DSTORE slot:u16 copies
+  // the top double into slot, leaving it on the lane. A subtree the tree
+  // shares is computed once and stored, and loaded at every other use.
+  public static final byte DLOAD = 10;
+  public static final byte DSTORE = 11;
+
+  /* Lane transfers */
+
+  // Pop a double, push it as a Double.
+  public static final byte BOX = 12;
+  // Pop a value, push it as a double or fail if it is not a number.
+  public static final byte UNBOX = 13;
+
+  /* Value lane */
+
+  // CONST index:u16 -> pushes constants[index]
+  public static final byte CONST = 14;
+  // Adds two numbers or concatenates two strings.
+  public static final byte ADD = 15;
+  public static final byte EQUAL = 16;
+  public static final byte NOT_EQUAL = 17;
+  public static final byte NOT = 18;
+  // GET index:u16 -> pushes the variable named constants[index]. Scripts
+  // cannot bind variables yet, so this always fails.
+  public static final byte GET = 19;
+  // LOAD slot:u16 and STORE slot:u16, as DLOAD and DSTORE.
+  public static final byte LOAD = 20;
+  public static final byte STORE = 21;
+
+  /* Control */
+
+  public static final byte RETURN = 22;
+  public static final byte DRETURN = 23;
+
+  /* Prefix */
+
+  // WIDE opcode index:u32 -> runs DCONST, CONST or GET with a four byte
+  // index, for expressions with more than 65536 constants of a kind.
+  public static final byte WIDE = 24;
+
+  private static final String[] names = {
+    "DCONST", "DADD", "DSUBTRACT", "DMULTIPLY", "DDIVIDE", "DNEGATE",
+    "DGREATER", "DGREATER_EQUAL", "DLESS", "DLESS_EQUAL", "DLOAD", "DSTORE",
+    "BOX", "UNBOX",
+    "CONST", "ADD", "EQUAL", "NOT_EQUAL", "NOT", "GET", "LOAD", "STORE",
+    "RETURN", "DRETURN",
+    "WIDE"
+  };
+
+  private OpCode() {}
+
+  public static String nameOf(byte opcode) {
+    return opcode >= 0 && opcode < names.length ? names[opcode] : "UNKNOWN(" + opcode + ")";
+  }
+
+  // Number of operand bytes following the opcode, counting the opcode a
+  // WIDE prefix applies to.
+  public static int operandBytes(byte opcode) {
+    if (opcode == WIDE) {
+      return 5;
+    }
+    switch (opcode) {
+    case DCONST:
+    case DLOAD:
+    case DSTORE:
+    case CONST:
+    case GET:
+    case LOAD:
+    case STORE:
+      return 2;
+    default:
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,217 @@
+package metal.backend.vm;
+
+import java.util.Arrays;
+
+import metal.backend.RuntimeError;
+import metal.frontend.scanner.Token;
+import metal.frontend.scanner.TokenType;
+
+// Executes chunks over a two-lane operand stack. A VM reuses its stacks
+// between runs, so keep one per thread and run compiled chunks repeatedly.
+public class VM {
+  private static final int NUMBER = 0;
+  private static final int VALUE = 1;
+
+  private double[] numbers = new double[16];
+  private Object[] values = new Object[16];
+  private double[] numberSlots = new double[0];
+  private Object[] valueSlots = new Object[0];
+
+  public Object run(Chunk chunk) {
+    if (execute(chunk) == NUMBER) {
+      return numbers[0];
+    }
+    Object result = values[0];
+    values[0] = null;
+    return result;
+  }
+
+  /**
+   * Runs a chunk whose result is known to be a number without boxing it.
+   */
+  public double runNumber(Chunk chunk) {
+    if (execute(chunk) == NUMBER) {
+      return numbers[0];
+    }
+    Object result = values[0];
+    values[0] = null;
+    if (result instanceof Double) {
+      return (Double) result;
+    }
+    throw new RuntimeError(null, "Expression does not produce a number.");
+  }
+
+  /*
+   * Runs the chunk and returns the lane its result was left on, at index 0.
+   */
+  private int execute(Chunk chunk) {
+    if (chunk.maxNumbers > numbers.length) numbers = new double[chunk.maxNumbers];
+    if (chunk.maxValues > values.length) values = new Object[chunk.maxValues];
+    if (chunk.numberSlots > numberSlots.length) numberSlots = new double[chunk.numberSlots];
+    if (chunk.valueSlots > valueSlots.length) valueSlots = new Object[chunk.valueSlots];
+
+    final byte[] code = chunk.code;
+    final double[] pool = chunk.numbers;
+    final Object[] constants = chunk.constants;
+    final double[] numbers = this.numbers;
+    final Object[] values = this.values;
+    final double[] numberSlots = this.numberSlots;
+    final Object[] valueSlots = this.valueSlots;
+    int ip = 0;
+    int n = 0;
+    int v = 0;
+
+    for (;;) {
+      byte opcode = code[ip++];
+      switch (opcode) {
+      case OpCode.DCONST:
+        numbers[n++] = pool[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+        ip += 2;
+        break;
+      case OpCode.DADD:
+        n--;
+        numbers[n - 1] += numbers[n];
+        break;
+      case OpCode.DSUBTRACT:
+        n--;
+        numbers[n - 1] -= numbers[n];
+        break;
+      case OpCode.DMULTIPLY:
+        n--;
+        numbers[n - 1] *= numbers[n];
+        break;
+      case OpCode.DDIVIDE:
+        n--;
+        numbers[n - 1] /= numbers[n];
+        break;
+      case OpCode.DNEGATE:
+        numbers[n - 1] = -numbers[n - 1];
+        break;
+      case OpCode.DGREATER:
+        n -= 2;
+        values[v++] = numbers[n] > numbers[n + 1];
+        break;
+      case OpCode.DGREATER_EQUAL:
+        n -= 2;
+        values[v++] = numbers[n] >= numbers[n + 1];
+        break;
+      case OpCode.DLESS:
+        n -= 2;
+        values[v++] = numbers[n] < numbers[n + 1];
+        break;
+      case OpCode.DLESS_EQUAL:
+        n -= 2;
+        values[v++] = numbers[n] <= numbers[n + 1];
+        break;
+      case OpCode.DLOAD:
+        numbers[n++] = numberSlots[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+        ip += 2;
+        break;
+      case OpCode.DSTORE:
+        numberSlots[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)] = numbers[n - 1];
+        ip += 2;
+        break;
+      case OpCode.BOX:
+        values[v++] = numbers[--n];
+        break;
+      case OpCode.UNBOX: {
+        Object value = values[--v];
+        values[v] = null;
+        if (!(value instanceof Double)) {
+          throw error(chunk, ip - 1, "Operand must be a number.");
+        }
+        numbers[n++] = (Double) value;
+        break;
+      }
+      case OpCode.CONST:
+        values[v++] = constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+        ip += 2;
+        break;
+      case OpCode.ADD: {
+        Object right = values[--v];
+        Object left = values[v - 1];
+        values[v] = null;
+        if (left instanceof Double && right instanceof Double) {
+          values[v - 1] = (Double) left + (Double) right;
+        } else if (left instanceof String && right instanceof String) {
+          values[v - 1] = (String) left + (String) right;
+        } else {
+          throw error(chunk, ip - 1, "Operands must be two numbers or two strings.");
+        }
+        break;
+      }
+      case OpCode.EQUAL: {
+        Object right = values[--v];
+        values[v] = null;
+        values[v - 1] = isEqual(values[v - 1], right);
+        break;
+      }
+      case OpCode.NOT_EQUAL: {
+        Object right = values[--v];
+        values[v] = null;
+        values[v - 1] = !isEqual(values[v - 1], right);
+        break;
+      }
+      case OpCode.NOT:
+        values[v - 1] = !isTruthy(values[v - 1]);
+        break;
+      case OpCode.GET: {
+        Object name = constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+        throw error(chunk, ip - 1, "Undefined variable '" + name + "'.");
+      }
+      case OpCode.LOAD:
+        values[v++] = valueSlots[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+        ip += 2;
+        break;
+      case OpCode.STORE:
+        valueSlots[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)] = values[v - 1];
+        ip += 2;
+        break;
+      case OpCode.WIDE: {
+        int index = (code[ip + 1] & 0xff) << 24 | (code[ip + 2] & 0xff) << 16
+            | (code[ip + 3] & 0xff) << 8 | (code[ip + 4] & 0xff);
+        switch (code[ip]) {
+        case OpCode.DCONST:
+          numbers[n++] = pool[index];
+          break;
+        case OpCode.CONST:
+          values[v++] = constants[index];
+          break;
+        default:
+          throw error(chunk, ip, "Undefined variable '" + constants[index] + "'.");
+        }
+        ip += 5;
+        break;
+      }
+      case OpCode.RETURN:
+        Arrays.fill(valueSlots, 0, chunk.valueSlots, null);
+        return VALUE;
+      case OpCode.DRETURN:
+        Arrays.fill(valueSlots, 0, chunk.valueSlots, null);
+        return NUMBER;
+      default:
+        throw error(chunk, ip - 1, "Unknown opcode " + opcode + ".");
+      }
+    }
+  }
+
+  private RuntimeError error(Chunk chunk, int offset, String message) {
+    Arrays.fill(values, null);
+    Arrays.fill(valueSlots, null);
+    Token token = new Token(TokenType.Operator, OpCode.nameOf(chunk.code[offset]), null,
+        chunk.lines[offset], chunk.columns[offset]);
+    return new RuntimeError(token, message);
+  }
+
+  private static boolean isTruthy(Object value) {
+    if (value == null) return false;
+    if (value instanceof Boolean) return (boolean) value;
+    return true;
+  }
+
+  private static boolean isEqual(Object a, Object b) {
+    if (a == null && b == null) return true;
+    if (a == null) return false;
+    return a.equals(b);
+  }
+}
@@ -0,0 +1,152 @@
+package metal.benchmark;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import metal.frontend.parser.Parser;
+import metal.frontend.parser.grammar.Expression;
+import metal.frontend.parser.grammar.ExpressionArena;
+import metal.frontend.scanner.Scanner;
+import metal.frontend.scanner.Token;
+import metal.utilities.ASTPrinter;
+import metal.utilities.CorpusGenerator;
+
+// Measures the throughput and allocation of the front end's hot paths on a
+// generated corpus: scanning, parsing a scanned token list, and printing a
+// parsed tree. Each benchmark is run in timed rounds; the warm-up rounds
+// let the JIT settle and only the measured rounds are reported.
+//
+// Settings are the CorpusGenerator ones plus --warmup=N, --rounds=N,
+// --time=MS (length of a round) and --only=scan|parse|print.
+public class Benchmark {
+  private interface Operation {
+    // Runs the benchmarked code once and returns something derived from
+    // its result, so the work cannot be optimized away.
+    int run() throws IOException;
+  }
+
+  private int warmup = 5;
+  private int rounds = 5;
+  private long time = 1000;
+  private String only = null;
+
+  // Accumulates operation results; read at the end so it is never dead.
+  private int sink;
+
+  public static void main(String[] args) throws IOException {
+    Benchmark benchmark = new Benchmark();
+    CorpusGenerator generator = new CorpusGenerator();
+    for (String arg : args) {
+      if (!benchmark.configure(arg) && !generator.configure(arg)) {
+        System.err.println("Usage: benchmark [--warmup=N] [--rounds=N] [--time=MS] [--only=scan|parse|print]"
+            + " [corpus settings, see generate_corpus]");
+        System.exit(64);
+      }
+    }
+    benchmark.run(generator);
+  }
+
+  private boolean configure(String arg) {
+    int equals = arg.indexOf('=');
+    if (!arg.startsWith("--") || equals < 0) {
+      return false;
+    }
+    String value = arg.substring(equals + 1);
+    try {
+      switch (arg.substring(2, equals)) {
+      case "warmup": warmup = Integer.parseInt(value); return true;
+      case "rounds": rounds = Integer.parseInt(value); return true;
+      case "time": time = Long.parseLong(value); return true;
+      case "only": only = value; return true;
+      default: return false;
+      }
+    } catch (NumberFormatException error) {
+      return false;
+    }
+  }
+
+  private void run(CorpusGenerator generator) throws IOException {
+    String source = generator.generate();
+    List<Token> tokens = new Scanner(source).scanTokens();
+    Expression expression = new Parser(tokens).parse();
+    ExpressionArena arena = new ExpressionArena();
+    new Parser(tokens).parse(arena);
+    int nodes = arena.size();
+
+    System.out.printf("corpus: %d chars, %d tokens, %d nodes (seed %d, depth %d)%n",
+        source.length(), tokens.size(), nodes, generator.seed(), generator.depth());
+
+    if (selected("scan")) {
+      measure("scan", tokens.size(), nodes, () -> new Scanner(source).scanTokens().size());
+    }
+    if (selected("parse")) {
+      measure("parse", tokens.size(), nodes, () -> new Parser(tokens).parse().hashCode());
+    }
+    if (selected("print")) {
+      ASTPrinter printer = new ASTPrinter();
+      StringBuilder out = new StringBuilder(source.length() * 2);
+      measure("print", tokens.size(), nodes, () -> {
+        out.setLength(0);
+        printer.print(expression, out);
+        return out.length();
+      });
+    }
+
+    if (sink == 42) {
+      System.out.println();
+    }
+  }
+
+  private boolean selected(String name) {
+    return only == null || only.equals(name);
+  }
+
+  private void measure(String name, int tokens, int nodes, Operation operation) throws IOException {
+    for (int i = 0; i < warmup; i++) {
+      round(operation);
+    }
+
+    long operations = 0;
+    long nanos = 0;
+    long bytes = 0;
+    for (int i = 0; i < rounds; i++) {
+      long[] result = round(operation);
+      operations += result[0];
+      nanos += result[1];
+      bytes += result[2];
+    }
+
+    double seconds = nanos / 1e9;
+    System.out.printf("%-6s %10.1f ops/s %14.0f tokens/s %14.0f nodes/s %10.1f MB/s alloc %12.0f B/op%n",
+        name,
+        operations / seconds,
+        operations * (double) tokens / seconds,
+        operations * (double) nodes / seconds,
+        bytes / seconds / (1 << 20),
+        bytes / (double) operations);
+  }
+
+  /*
+   * Runs the operation repeatedly for one round and returns the number of
+   * operations, the elapsed nanoseconds and the bytes allocated.
+   */
+  private long[] round(Operation operation) throws IOException {
+    long deadline = System.nanoTime() + time * 1_000_000;
+    long allocated = allocatedBytes();
+    long start = System.nanoTime();
+    long operations = 0;
+    long now;
+    do {
+      sink += operation.run();
+      operations++;
+      now = System.nanoTime();
+    } while (now < deadline);
+    return new long[] { operations, now - start, allocatedBytes() - allocated };
+  }
+
+  private static long allocatedBytes() {
+    return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
@@ -0,0 +1,46 @@
+package metal.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import metal.Metal;
+import metal.frontend.parser.Parser;
+import metal.frontend.parser.grammar.Expression;
+import metal.frontend.scanner.Scanner;
+import metal.utilities.ASTPrinter;
+import metal.utilities.CorpusGenerator;
+
+// Training run for the class-data-sharing archive built by startup.sh.
+// Runs a small generated script through everything a normal invocation
+// touches (reading, scanning, parsing, optimizing, caching, evaluating)
+// and prints its tree, so that the classes involved are loaded, and thus
+// archived, when the JVM exits.
+public class Training {
+  public static void main(String[] args) throws IOException {
+    if (args.length != 1) {
+      System.err.println("Usage: training <script to write>");
+      System.exit(64);
+    }
+
+    CorpusGenerator generator = new CorpusGenerator();
+    generator.configure("--tokens=2000");
+    generator.configure("--depth=4");
+    generator.configure("--comments=0.1");
+    String source = generator.generate();
+    Path script = Paths.get(args[0]);
+    Files.write(script, source.getBytes(StandardCharsets.UTF_8));
+
+    PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+    // Twice, so that both a cache miss and a cache hit are exercised.
+    Metal.runScripts(new String[] { script.toString() }, discard, discard);
+    Metal.runScripts(new String[] { script.toString() }, discard, discard);
+
+    Expression expression = new Parser(new Scanner(source)).parse();
+    new ASTPrinter().print(expression, discard);
+  }
+}
@@ -0,0 +1,263 @@
+package metal.cache;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import metal.frontend.scanner.OperatorKind;
+import metal.frontend.scanner.Token;
+import metal.frontend.scanner.TokenType;
+import metal.frontend.parser.grammar.Expression;
+
+// Compact binary form of an expression tree. Nodes are written in post
+// order (children before their parent), so reading is a loop over a stack
+// rather than a recursive descent. An operator node the tree holds more
+// than once is written the first time and referred back to after that, so
+// shared subtrees stay shared.
+public class ExpressionCodec implements Expression.Visitor<Void> {
+  // Version of what is written, part of every cache key. Bump it whenever
+  // the encoding or the trees handed to it change:
+  //   1  parsed trees
+  //   2  optimized trees: folded constants, no groups, shared subtrees
+  //   3  VARIABLE nodes
+  //   4  REF nodes
+  public static final int FORMAT = 4;
+
+  private static final byte BINARY = 0;
+  private static final byte GROUP = 1;
+  private static final byte LITERAL = 2;
+  private static final byte UNARY = 3;
+  private static final byte END = 4;
+  private static final byte VARIABLE = 5;
+  // REF index:i32 -> the index-th operator node written, counting from 0.
+  private static final byte REF = 6;
+
+  private static final OperatorKind[] kinds = OperatorKind.values();
+
+  private static final byte NIL = 0;
+  private static final byte TRUE = 1;
+  private static final byte FALSE = 2;
+  private static final byte NUMBER = 3;
+  private static final byte STRING = 4;
+
+  private final DataOutput out;
+  private final Map<Expression, Integer> written = new IdentityHashMap<>();
+
+  private ExpressionCodec(DataOutput out) {
+    this.out = out;
+  }
+
+  public static void write(Expression expression, DataOutput out) throws IOException {
+    try {
+      expression.accept(new ExpressionCodec(out));
+      out.writeByte(END);
+    } catch (UncheckedIOException error) {
+      throw error.getCause();
+    }
+  }
+
+  /**
+   * Reads a tree written by write(). The encoding is trusted no further than
+   * its size: a length past it is malformed rather than allocated.
+   */
+  public static Expression read(DataInput in, int size) throws IOException {
+    Deque<Expression> stack = new ArrayDeque<>();
+    List<Expression> operators = new ArrayList<>();
+    for (;;) {
+      byte tag = in.readByte();
+      switch (tag) {
+      case BINARY: {
+        Token operator = readOperator(in);
+        Expression right = pop(stack);
+        Expression left = pop(stack);
+        Expression binary = new Expression.Binary(left, operator, right);
+        operators.add(binary);
+        stack.push(binary);
+        break;
+      }
+      case GROUP:
+        stack.push(new Expression.Group(pop(stack)));
+        break;
+      case LITERAL:
+        stack.push(new Expression.Literal(readValue(in, size)));
+        break;
+      case UNARY: {
+        Token operator = readOperator(in);
+        Expression unary = new Expression.Unary(operator, pop(stack));
+        operators.add(unary);
+        stack.push(unary);
+        break;
+      }
+      case REF: {
+        int index = in.readInt();
+        if (index < 0 || index >= operators.size()) {
+          throw new IOException("Malformed reference " + index + ".");
+        }
+        stack.push(operators.get(index));
+        break;
+      }
+      case VARIABLE:
+        stack.push(new Expression.Variable(new Token(TokenType.Identifier, in.readUTF(), null, in.readInt(), in.readInt())));
+        break;
+      case END:
+        if (stack.size() != 1) {
+          throw new IOException("Malformed expression.");
+        }
+        return stack.pop();
+      default:
+        throw new IOException("Unknown node tag " + tag + ".");
+      }
+    }
+  }
+
+  @Override
+  public Void visitBinaryExpression(Expression.Binary expression) {
+    if (reference(expression)) {
+      return null;
+    }
+    expression.left.accept(this);
+    expression.right.accept(this);
+    tag(BINARY);
+    writeOperator(expression.operator);
+    written.put(expression, written.size());
+    return null;
+  }
+
+  @Override
+  public Void visitGroupExpression(Expression.Group expression) {
+    expression.expression.accept(this);
+    tag(GROUP);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpression(Expression.Literal expression) {
+    tag(LITERAL);
+    try {
+      Object value = expression.value;
+      if (value == null) {
+        out.writeByte(NIL);
+      } else if (value instanceof Boolean) {
+        out.writeByte((Boolean) value ? TRUE : FALSE);
+      } else if (value instanceof Double) {
+        out.writeByte(NUMBER);
+        out.writeDouble((Double) value);
+      } else {
+        byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+        out.writeByte(STRING);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+    } catch (IOException error) {
+      throw new UncheckedIOException(error);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpression(Expression.Unary expression) {
+    if (reference(expression)) {
+      return null;
+    }
+    expression.right.accept(this);
+    tag(UNARY);
+    writeOperator(expression.operator);
+    written.put(expression, written.size());
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpression(Expression.Variable expression) {
+    tag(VARIABLE);
+    try {
+      out.writeUTF(expression.name.lexeme);
+      out.writeInt(expression.name.line);
+      out.writeInt(expression.name.column);
+    } catch (IOException error) {
+      throw new UncheckedIOException(error);
+    }
+    return null;
+  }
+
+  // Refers back to an operator node that was written already.
+  private boolean reference(Expression expression) {
+    Integer index = written.get(expression);
+    if (index == null) {
+      return false;
+    }
+    tag(REF);
+    try {
+      out.writeInt(index);
+    } catch (IOException error) {
+      throw new UncheckedIOException(error);
+    }
+    return true;
+  }
+
+  private void tag(byte tag) {
+    try {
+      out.writeByte(tag);
+    } catch (IOException error) {
+      throw new UncheckedIOException(error);
+    }
+  }
+
+  // Operators are fully described by their kind and position.
+  private void writeOperator(Token operator) {
+    try {
+      out.writeByte(operator.kind.ordinal());
+      out.writeInt(operator.line);
+      out.writeInt(operator.column);
+    } catch (IOException error) {
+      throw new UncheckedIOException(error);
+    }
+  }
+
+  private static Token readOperator(DataInput in) throws IOException {
+    int ordinal = in.readUnsignedByte();
+    if (ordinal >= kinds.length) {
+      throw new IOException("Unknown operator " + ordinal + ".");
+    }
+    OperatorKind kind = kinds[ordinal];
+    return new Token(kind.type, kind, kind.lexeme, null, in.readInt(), in.readInt());
+  }
+
+  private static Object readValue(DataInput in, int size) throws IOException {
+    byte tag = in.readByte();
+    switch (tag) {
+    case NIL:
+      return null;
+    case TRUE:
+      return true;
+    case FALSE:
+      return false;
+    case NUMBER:
+      return in.readDouble();
+    case STRING:
+      int length = in.readInt();
+      if (length < 0 || length > size) {
+        throw new IOException("Malformed string length " + length + ".");
+      }
+      byte[] bytes = new byte[length];
+      in.readFully(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    default:
+      throw new IOException("Unknown value tag " + tag + ".");
+    }
+  }
+
+  private static Expression pop(Deque<Expression> stack) throws IOException {
+    if (stack.isEmpty()) {
+      throw new IOException("Malformed expression.");
+    }
+    return stack.pop();
+  }
+}
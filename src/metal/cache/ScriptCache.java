@@ -0,0 +1,141 @@
+package metal.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import metal.frontend.parser.grammar.Expression;
+
+// On-disk cache of parsed scripts. Entries are named after a SHA-256 of the
+// compiler version, the codec format and the script's bytes and hold the
+// serialized tree, so a script that has not changed since it was last run
+// is loaded with one sequential read instead of being scanned and parsed
+// again.
+public class ScriptCache {
+  private static final int MAGIC = 0x4D544C54; // "MTLT"
+  private static final String EXTENSION = ".mtlc";
+
+  private final Path directory;
+  private final String version;
+
+  public ScriptCache(Path directory, String version) {
+    this.directory = directory;
+    this.version = version;
+  }
+
+  /**
+   * The cache configured through the metal.cache.dir property (defaulting to
+   * ~/.cache/metal), or null if caching has been turned off by setting
+   * metal.cache to false or metal.cache.dir to an empty value.
+   */
+  public static ScriptCache fromSystemProperties(String version) {
+    if (System.getProperty("metal.cache", "true").equals("false")) {
+      return null;
+    }
+    String directory = System.getProperty("metal.cache.dir",
+        Paths.get(System.getProperty("user.home"), ".cache", "metal").toString());
+    if (directory.isEmpty()) {
+      return null;
+    }
+    return new ScriptCache(Paths.get(directory), version);
+  }
+
+  /**
+   * Hashes a script. The file is hashed straight from a memory mapping.
+   */
+  public byte[] key(Path script) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException error) {
+      throw new IllegalStateException(error);
+    }
+    digest.update(version.getBytes(StandardCharsets.UTF_8));
+    digest.update((byte) ExpressionCodec.FORMAT);
+
+    try (FileChannel channel = FileChannel.open(script, StandardOpenOption.READ)) {
+      long size = channel.size();
+      for (long offset = 0; offset < size; offset += Integer.MAX_VALUE) {
+        MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(Integer.MAX_VALUE, size - offset));
+        digest.update(region);
+      }
+    }
+    return digest.digest();
+  }
+
+  /**
+   * Loads the tree cached under the key, or returns null if there is no
+   * usable entry.
+   */
+  public Expression load(byte[] key) {
+    Path entry = entry(key);
+    if (!Files.isRegularFile(entry)) {
+      return null;
+    }
+
+    try {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(entry)));
+      if (in.readInt() != MAGIC || in.readInt() != ExpressionCodec.FORMAT) {
+        return null;
+      }
+      byte[] stored = new byte[key.length];
+      in.readFully(stored);
+      if (!Arrays.equals(stored, key)) {
+        return null;
+      }
+      // The entry is in memory, so available() is the exact size of the tree.
+      return ExpressionCodec.read(in, in.available());
+    } catch (IOException | RuntimeException error) {
+      // Corrupt or truncated entries are treated as misses.
+      return null;
+    }
+  }
+
+  /**
+   * Stores a tree under the key. Entries are written to a temporary file
+   * and moved into place, so concurrent runs never see a partial entry.
+   * Failures are ignored; the cache is only an optimization.
+   */
+  public void store(byte[] key, Expression expression) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(MAGIC);
+      out.writeInt(ExpressionCodec.FORMAT);
+      out.write(key);
+      ExpressionCodec.write(expression, out);
+
+      Files.createDirectories(directory);
+      Path temporary = Files.createTempFile(directory, "entry", ".tmp");
+      try {
+        Files.write(temporary, bytes.toByteArray());
+        Files.move(temporary, entry(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(temporary);
+      }
+    } catch (IOException error) {
+      // Leave the script uncached.
+    }
+  }
+
+  private Path entry(byte[] key) {
+    StringBuilder name = new StringBuilder(key.length * 2 + EXTENSION.length());
+    for (byte b : key) {
+      name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return directory.resolve(name.append(EXTENSION).toString());
+  }
+}
@@ -0,0 +1,87 @@
+package metal.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+// Forwards a command line to a running Daemon and copies its output back.
+//
+// main() is the client's entry point. It loads nothing of the interpreter
+// (not even metal.Metal, whose static fields set up the interpreter and
+// the script cache), so a client run costs little more than JVM startup.
+public class Client {
+  private final Path socket;
+
+  public Client(Path socket) {
+    this.socket = socket;
+  }
+
+  /**
+   * The socket given by the metal.socket property, or one per user in the
+   * temporary directory. The daemon listens on the same one.
+   */
+  public static Path defaultSocket() {
+    String socket = System.getProperty("metal.socket");
+    if (socket != null) {
+      return Paths.get(socket);
+    }
+    return Paths.get(System.getProperty("java.io.tmpdir"), "metal-" + System.getProperty("user.name") + ".sock");
+  }
+
+  public static void main(String[] args) {
+    Path socket = defaultSocket();
+    int status;
+    try {
+      status = new Client(socket).run(args, System.out, System.err);
+    } catch (IOException error) {
+      System.err.println("Error: Could not reach the daemon at " + socket + " (" + error.getMessage() + ").");
+      status = 69;
+    }
+    if (status != 0) System.exit(status);
+  }
+
+  /**
+   * Runs the scripts named by the arguments on the daemon, writing their
+   * output to the given streams, and returns the exit status.
+   */
+  public int run(String[] arguments, PrintStream out, PrintStream err) throws IOException {
+    try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+      DataOutputStream request = new DataOutputStream(Channels.newOutputStream(channel));
+      request.writeInt(arguments.length);
+      for (String argument : arguments) {
+        // The daemon does not share our working directory.
+        request.writeUTF(Paths.get(argument).toAbsolutePath().toString());
+      }
+      request.flush();
+
+      DataInputStream reply = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+      byte[] buffer = new byte[8192];
+      for (;;) {
+        byte tag = reply.readByte();
+        if (tag == Daemon.EXIT) {
+          out.flush();
+          err.flush();
+          return reply.readInt();
+        }
+
+        PrintStream target = tag == Daemon.ERR ? err : out;
+        int length = reply.readInt();
+        while (length > 0) {
+          int read = reply.read(buffer, 0, Math.min(length, buffer.length));
+          if (read < 0) {
+            throw new IOException("The daemon closed the connection.");
+          }
+          target.write(buffer, 0, read);
+          length -= read;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,169 @@
+package metal.daemon;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import metal.Metal;
+import metal.frontend.Diagnostics;
+import metal.frontend.parser.Parser;
+import metal.frontend.scanner.Scanner;
+import metal.utilities.CorpusGenerator;
+
+// Keeps a JVM with a warmed-up front end running and executes scripts for
+// Client over a Unix-domain socket, so that running a script does not pay
+// for JVM startup and a cold JIT every time.
+//
+// A request is the number of arguments followed by the arguments, each as
+// modified UTF-8 (DataOutput.writeUTF). The reply is a sequence of frames:
+// a tag byte, then for OUT and ERR a length and that many bytes of output,
+// and for EXIT the exit status, which ends the reply.
+public class Daemon {
+  static final byte OUT = 1;
+  static final byte ERR = 2;
+  static final byte EXIT = 3;
+
+  private final Path socket;
+  private final ExecutorService connections = Executors.newCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable, "metal-connection");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  public Daemon(Path socket) {
+    this.socket = socket;
+  }
+
+  /**
+   * Serves requests until the process is stopped.
+   */
+  public void serve() throws IOException {
+    if (Files.exists(socket)) {
+      if (listening(socket)) {
+        throw new IOException("A daemon is already listening on " + socket + ".");
+      }
+      // Left behind by a daemon that did not shut down cleanly.
+      Files.delete(socket);
+    }
+
+    try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+      server.bind(UnixDomainSocketAddress.of(socket));
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        try {
+          Files.deleteIfExists(socket);
+        } catch (IOException error) {
+          // Nothing left to do.
+        }
+      }));
+
+      Thread warmUp = new Thread(Daemon::warmUp, "metal-warm-up");
+      warmUp.setDaemon(true);
+      warmUp.start();
+
+      System.err.println("Listening on " + socket + ".");
+      for (;;) {
+        SocketChannel channel = server.accept();
+        connections.execute(() -> handle(channel));
+      }
+    }
+  }
+
+  private static boolean listening(Path socket) {
+    try {
+      SocketChannel.open(UnixDomainSocketAddress.of(socket)).close();
+      return true;
+    } catch (IOException error) {
+      return false;
+    }
+  }
+
+  private void handle(SocketChannel channel) {
+    try (channel) {
+      DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+      String[] arguments = new String[in.readInt()];
+      for (int i = 0; i < arguments.length; i++) {
+        arguments[i] = in.readUTF();
+      }
+
+      DataOutputStream frames = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+      PrintStream out = new PrintStream(new FrameStream(frames, OUT), true, StandardCharsets.UTF_8);
+      PrintStream err = new PrintStream(new FrameStream(frames, ERR), true, StandardCharsets.UTF_8);
+      int status;
+      try {
+        status = Metal.runScripts(arguments, out, err);
+      } catch (IOException error) {
+        err.println("Error: " + error.getMessage());
+        status = 66;
+      }
+      out.flush();
+      err.flush();
+      synchronized (frames) {
+        frames.writeByte(EXIT);
+        frames.writeInt(status);
+        frames.flush();
+      }
+    } catch (IOException error) {
+      // The client went away; nothing to report to.
+    }
+  }
+
+  /*
+   * Runs the scanner and parser over a generated corpus so that they are
+   * compiled before the first real request arrives.
+   */
+  private static void warmUp() {
+    String source = new CorpusGenerator().generate();
+    for (int i = 0; i < 20; i++) {
+      Diagnostics diagnostics = new Diagnostics();
+      new Parser(new Scanner(source, diagnostics), diagnostics).parse();
+    }
+  }
+
+  // Writes everything written to it to the client as frames of one tag.
+  private static final class FrameStream extends OutputStream {
+    private final DataOutputStream frames;
+    private final byte tag;
+
+    FrameStream(DataOutputStream frames, byte tag) {
+      this.frames = frames;
+      this.tag = tag;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      if (length == 0) {
+        return;
+      }
+      synchronized (frames) {
+        frames.writeByte(tag);
+        frames.writeInt(length);
+        frames.write(bytes, offset, length);
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      synchronized (frames) {
+        frames.flush();
+      }
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package metal.frontend;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import metal.frontend.scanner.Token;
+import metal.frontend.scanner.TokenType;
+
+// Collects the errors found while compiling one source. The Scanner and
+// Parser of a compilation share an instance instead of reporting through
+// global state, so compilations can run side by side, and the caller
+// decides when and where the errors are printed.
+public class Diagnostics {
+
+  public static final class Diagnostic {
+    public final int line;
+    public final int column;
+    // Where on the line the error is, e.g. " at end"; may be empty.
+    public final String where;
+    public final String message;
+
+    Diagnostic(int line, int column, String where, String message) {
+      this.line = line;
+      this.column = column;
+      this.where = where;
+      this.message = message;
+    }
+
+    @Override
+    public String toString() {
+      return "[Line " + line + " Column " + column + "] Error" + where + ": " + message;
+    }
+  }
+
+  private final List<Diagnostic> errors = new ArrayList<>();
+
+  public void error(int line, int column, String message) {
+    errors.add(new Diagnostic(line, column, "", message));
+  }
+
+  public void error(Token token, String message) {
+    if (token.type == TokenType.EOF) {
+      errors.add(new Diagnostic(token.line, token.column, " at end", message));
+    } else {
+      errors.add(new Diagnostic(token.line, token.column, " at '" + token.lexeme + "'", message));
+    }
+  }
+
+  public boolean hadError() {
+    return !errors.isEmpty();
+  }
+
+  /**
+   * The errors in the order they were found.
+   */
+  public List<Diagnostic> errors() {
+    return Collections.unmodifiableList(errors);
+  }
+}
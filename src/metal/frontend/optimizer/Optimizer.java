@@ -0,0 +1,148 @@
+package metal.frontend.optimizer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import metal.backend.RuntimeError;
+import metal.backend.interpreter.Interpreter;
+import metal.frontend.parser.grammar.Expression;
+
+// Rewrites a parsed tree before it is run. Operators whose operands are
+// all literals are folded into a literal, groups are dropped (the tree
+// already encodes the grouping), and structurally identical subtrees are
+// hash-consed so that each distinct subtree exists once and is shared by
+// every place it occurs.
+public class Optimizer implements Expression.Visitor<Expression> {
+  // Folding evaluates nodes with the interpreter itself, so folded values
+  // are exactly what running the tree would have produced.
+  private static final Interpreter folder = new Interpreter();
+
+  private final Map<Key, Expression> interned = new HashMap<>();
+
+  private Optimizer() {}
+
+  public static Expression optimize(Expression expression) {
+    return expression.accept(new Optimizer());
+  }
+
+  @Override
+  public Expression visitBinaryExpression(Expression.Binary expression) {
+    Expression left = expression.left.accept(this);
+    Expression right = expression.right.accept(this);
+    if (left instanceof Expression.Literal && right instanceof Expression.Literal) {
+      Expression folded = fold(new Expression.Binary(left, expression.operator, right));
+      if (folded != null) {
+        return folded;
+      }
+    }
+
+    Key key = new Key(expression.operator.kind, left, right);
+    Expression shared = interned.get(key);
+    if (shared == null) {
+      shared = left == expression.left && right == expression.right
+          ? expression
+          : new Expression.Binary(left, expression.operator, right);
+      interned.put(key, shared);
+    }
+    return shared;
+  }
+
+  @Override
+  public Expression visitGroupExpression(Expression.Group expression) {
+    return expression.expression.accept(this);
+  }
+
+  @Override
+  public Expression visitLiteralExpression(Expression.Literal expression) {
+    return literal(expression.value, expression);
+  }
+
+  @Override
+  public Expression visitUnaryExpression(Expression.Unary expression) {
+    Expression right = expression.right.accept(this);
+    if (right instanceof Expression.Literal) {
+      Expression folded = fold(new Expression.Unary(expression.operator, right));
+      if (folded != null) {
+        return folded;
+      }
+    }
+
+    Key key = new Key(expression.operator.kind, right, null);
+    Expression shared = interned.get(key);
+    if (shared == null) {
+      shared = right == expression.right
+          ? expression
+          : new Expression.Unary(expression.operator, right);
+      interned.put(key, shared);
+    }
+    return shared;
+  }
+
+  // Variables are never folded, only shared by name.
+  @Override
+  public Expression visitVariableExpression(Expression.Variable expression) {
+    Key key = new Key(Expression.Variable.class, expression.name.lexeme, null);
+    Expression shared = interned.get(key);
+    if (shared == null) {
+      shared = expression;
+      interned.put(key, shared);
+    }
+    return shared;
+  }
+
+  /*
+   * Evaluates a node over literals, or returns null if it fails at run
+   * time; such nodes are left in place so the error is still reported,
+   * from the same position, when the script runs.
+   */
+  private Expression fold(Expression expression) {
+    try {
+      return literal(folder.evaluate(expression), null);
+    } catch (RuntimeError error) {
+      return null;
+    }
+  }
+
+  private Expression literal(Object value, Expression.Literal original) {
+    Key key = new Key(Expression.Literal.class, value, null);
+    Expression shared = interned.get(key);
+    if (shared == null) {
+      shared = original != null ? original : new Expression.Literal(value);
+      interned.put(key, shared);
+    }
+    return shared;
+  }
+
+  /*
+   * Identifies a node by its operator (or node class) and its operands.
+   * Children are already interned, so they compare by identity, which the
+   * Expression classes inherit from Object; literal values compare by
+   * equals(), which keeps 0.0 and -0.0 apart.
+   */
+  private static final class Key {
+    final Object tag;
+    final Object first;
+    final Object second;
+
+    Key(Object tag, Object first, Object second) {
+      this.tag = tag;
+      this.first = first;
+      this.second = second;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) other;
+      return tag == key.tag && Objects.equals(first, key.first) && Objects.equals(second, key.second);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(tag, first, second);
+    }
+  }
+}
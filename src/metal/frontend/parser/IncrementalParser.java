@@ -0,0 +1,146 @@
+package metal.frontend.parser;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import metal.frontend.Diagnostics;
+import metal.frontend.scanner.Token;
+import metal.frontend.scanner.TokenBuffer;
+import metal.frontend.parser.grammar.*;
+
+// Keeps the tokens and tree of a source that is edited in place. An edit
+// only rescans the tokens it touches (see TokenBuffer.edit), and the
+// reparse reuses every parenthesized subtree whose tokens all lie outside
+// the rescanned window instead of parsing it again. A reused subtree that
+// has moved gets fresh tokens, so that positions match a fresh parse.
+public class IncrementalParser {
+  private final TokenBuffer tokens;
+  private Expression expression;
+  // Groups of the last parse, keyed by the index of their "(" token.
+  private NavigableMap<Integer, Parser.Subtree> groups = new TreeMap<>();
+  // Lexical and syntax errors of the last parse.
+  private Diagnostics diagnostics;
+
+  public IncrementalParser(String source) {
+    this.tokens = TokenBuffer.scan(source);
+    this.expression = parse(null);
+  }
+
+  public Expression expression() {
+    return expression;
+  }
+
+  public Diagnostics diagnostics() {
+    return diagnostics;
+  }
+
+  public TokenBuffer tokens() {
+    return tokens;
+  }
+
+  /**
+   * Replaces `removed` characters at `offset` with `inserted` and returns
+   * the new tree, or null if it no longer parses.
+   */
+  public Expression edit(int offset, int removed, String inserted) {
+    TokenBuffer.Edit edit = tokens.edit(offset, removed, inserted);
+    expression = parse(edit);
+    return expression;
+  }
+
+  private Expression parse(TokenBuffer.Edit edit) {
+    NavigableMap<Integer, Parser.Subtree> previous = groups;
+    NavigableMap<Integer, Parser.Subtree> current = new TreeMap<>();
+    groups = current;
+
+    Parser.Subtrees subtrees = new Parser.Subtrees() {
+      public Parser.Subtree find(int start) {
+        if (edit == null) {
+          return null;
+        }
+
+        // Map the index back to the previous parse; only groups entirely
+        // before or entirely after the rescanned window are unchanged.
+        Parser.Subtree group;
+        int shift;
+        if (start < edit.start) {
+          shift = 0;
+          group = previous.get(start);
+          if (group == null || group.end >= edit.start) {
+            return null;
+          }
+        } else if (start >= edit.newEnd) {
+          shift = edit.newEnd - edit.oldEnd;
+          group = previous.get(start - shift);
+          if (group == null) {
+            return null;
+          }
+        } else {
+          return null;
+        }
+
+        // A group that moved to another line or column holds tokens with
+        // stale positions, so its tree is rebuilt from the buffer.
+        if (tokens.line(start) != group.line || tokens.column(start) != group.column) {
+          new Relocation(start, current).rebuild(group.expression);
+          return current.get(start);
+        }
+
+        // Carry the group and the groups nested in it over to this parse.
+        for (Map.Entry<Integer, Parser.Subtree> entry : previous.subMap(group.start, true, group.end, true).entrySet()) {
+          Parser.Subtree nested = entry.getValue();
+          current.put(nested.start + shift, new Parser.Subtree(nested.expression, nested.start + shift, nested.end + shift,
+              nested.line, nested.column));
+        }
+        return group;
+      }
+
+      public void add(Parser.Subtree subtree) {
+        current.put(subtree.start, subtree);
+      }
+    };
+
+    diagnostics = new Diagnostics();
+    tokens.report(diagnostics);
+    return new Parser(tokens.stream(), subtrees, diagnostics).parse();
+  }
+
+  /*
+   * Rebuilds a reused tree with fresh tokens, taking them from the buffer in
+   * source order from the token at index, and records the groups in it.
+   */
+  private final class Relocation {
+    private int index;
+    private final Map<Integer, Parser.Subtree> groups;
+
+    Relocation(int index, Map<Integer, Parser.Subtree> groups) {
+      this.index = index;
+      this.groups = groups;
+    }
+
+    Expression rebuild(Expression expression) {
+      if (expression instanceof Expression.Binary) {
+        Expression.Binary binary = (Expression.Binary) expression;
+        Expression left = rebuild(binary.left);
+        Token operator = tokens.token(index++);
+        return new Expression.Binary(left, operator, rebuild(binary.right));
+      } else if (expression instanceof Expression.Group) {
+        int start = index++;
+        Expression.Group group = new Expression.Group(rebuild(((Expression.Group) expression).expression));
+        int end = index++;
+        groups.put(start, new Parser.Subtree(group, start, end, tokens.line(start), tokens.column(start)));
+        return group;
+      } else if (expression instanceof Expression.Unary) {
+        Token operator = tokens.token(index++);
+        return new Expression.Unary(operator, rebuild(((Expression.Unary) expression).right));
+      } else if (expression instanceof Expression.Variable) {
+        return new Expression.Variable(tokens.token(index++));
+      } else {
+        // A literal holds no token.
+        index++;
+        return expression;
+      }
+    }
+  }
+}
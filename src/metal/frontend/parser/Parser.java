@@ -1,13 +1,15 @@
 package metal.frontend.parser;
 
 import java.util.List;
-import java.util.Map;
 
 import static metal.frontend.scanner.TokenType.*;
+import static metal.frontend.scanner.OperatorKind.*;
+import metal.frontend.scanner.OperatorKind;
 import metal.frontend.scanner.TokenType;
 import metal.frontend.scanner.Token;
+import metal.frontend.scanner.TokenStream;
 import metal.frontend.parser.grammar.*;
-import metal.Metal;
+import metal.frontend.Diagnostics;
 
 
 public class Parser {
@@ -17,123 +19,277 @@ public class Parser {
     private static final long serialVersionUID = 1L;
   }
 
-  private final List<Token> tokens;
-  private int current = 0;
+  /*
+   * A parenthesized subtree, the indices of its "(" and ")" tokens and the
+   * position of its "(". Groups parse the same way wherever they appear,
+   * so an incremental parse can reuse them when none of their tokens
+   * changed; the position tells whether their tokens have moved.
+   */
+  static final class Subtree {
+    final Expression expression;
+    final int start;
+    final int end;
+    final int line;
+    final int column;
+
+    Subtree(Expression expression, int start, int end, int line, int column) {
+      this.expression = expression;
+      this.start = start;
+      this.end = end;
+      this.line = line;
+      this.column = column;
+    }
+  }
+
+  interface Subtrees {
+    // A reusable group whose "(" is the token at index start, or null.
+    Subtree find(int start);
+
+    void add(Subtree subtree);
+  }
+
+  // The parser only ever looks at the current and the previous token, so
+  // it can consume a stream without holding on to the rest of it.
+  private final TokenStream tokens;
+  private Token current;
+  private Token previous;
+  // Index of the current token in the stream.
+  private int index = 0;
+  private final Subtrees subtrees;
+  private final Diagnostics diagnostics;
 
   public Parser(List<Token> tokens) {
+    this(TokenStream.of(tokens));
+  }
+
+  public Parser(TokenStream tokens) {
+    this(tokens, new Diagnostics());
+  }
+
+  public Parser(TokenStream tokens, Diagnostics diagnostics) {
+    this(tokens, null, diagnostics);
+  }
+
+  Parser(TokenStream tokens, Subtrees subtrees, Diagnostics diagnostics) {
     this.tokens = tokens;
+    this.subtrees = subtrees;
+    this.diagnostics = diagnostics;
+    this.current = tokens.next();
   }
 
+  /**
+   * Where syntax errors are collected.
+   */
+  public Diagnostics diagnostics() {
+    return diagnostics;
+  }
+
+  /**
+   * Parses the source, or returns null if it has syntax errors. Parsing
+   * carries on past the first error so that one pass reports them all.
+   */
   public Expression parse() {                
     try {                       
       return expression();      
     } catch (ParseError error) {
+      recover(null);
       return null;              
     }                           
   } 
 
+  /**
+   * Parses into an arena instead of allocating Expression objects, and
+   * returns the index of the root node, or -1 if there was a syntax error.
+   * On an error the arena is left as it was before the call.
+   */
+  public int parse(ExpressionArena arena) {
+    int size = arena.size();
+    try {
+      return expression(arena, 1);
+    } catch (ParseError error) {
+      recover(arena);
+      arena.truncate(size);
+      return -1;
+    }
+  }
+
+  /*
+   * Panic mode: skips to the next point a new construct can start and
+   * parses on from there, only to find any further errors.
+   */
+  private void recover(ExpressionArena arena) {
+    while (!isAtEnd()) {
+      synchronize();
+      if (isAtEnd()) {
+        return;
+      }
+      try {
+        if (arena == null) {
+          expression();
+        } else {
+          expression(arena, 1);
+        }
+      } catch (ParseError error) {
+        // Reported; keep going.
+      }
+    }
+  }
+
 /*
- * expression → equality
+ * Binding power of each infix operator, indexed by OperatorKind ordinal.
+ * Zero means the kind is not an infix operator. Adding an operator only
+ * needs an entry here (and in the evaluators).
+ *
+ * equality       → "!=" | "=="
+ * comparison     → ">" | ">=" | "<" | "<="
+ * addition       → "-" | "+"
+ * multiplication → "/" | "*"
  */
-  private Expression expression() {
-    return equality();
+  private static final int[] precedence = new int[OperatorKind.values().length];
+
+  static {
+    precedence[BangEqual.ordinal()] = 1;
+    precedence[EqualEqual.ordinal()] = 1;
+    precedence[Greater.ordinal()] = 2;
+    precedence[GreaterEqual.ordinal()] = 2;
+    precedence[Less.ordinal()] = 2;
+    precedence[LessEqual.ordinal()] = 2;
+    precedence[Minus.ordinal()] = 3;
+    precedence[Plus.ordinal()] = 3;
+    precedence[Slash.ordinal()] = 4;
+    precedence[Star.ordinal()] = 4;
   }
 
 /*
- * equality → comparison ( ( "!=" | "==" ) comparison )* zero or more
+ * expression → prefix ( INFIX expression )* zero or more
+ *
+ * Precedence climbing: keeps folding infix operators that bind at least as
+ * tightly as minimum into a left-associative tree, so a flat chain of
+ * operators is parsed in a loop rather than a call per precedence level.
  */
-  private Expression equality() {
-    Expression expression = comparison();
+  private Expression expression() {
+    return expression(1);
+  }
+
+  private Expression expression(int minimum) {
+    Expression expression = prefix();
+
+    for (;;) {
+      int binding = precedence[current.kind.ordinal()];
+      if (binding == 0 || binding < minimum) {
+        return expression;
+      }
 
-    while (match("!=", "==")) {
-      Token operator = previous();
-      Expression right = comparison();
+      Token operator = next();
+      Expression right = expression(binding + 1);
       expression = new Expression.Binary(expression, operator, right);
     }
-
-    return expression;
   }
 
 /*
- * comparison → addition ( ( ">" | ">=" | "<" | "<=" ) addition )* zero or more
+ * prefix → ( "!" | "-" ) prefix | primary ;
+ * primary → NUMBER | INTEGER | STRING | "false" | "true" | "nil" | IDENTIFIER | "(" expression ")" ;
  */
-  private Expression comparison() {
-    Expression expression = addition();
-
-    while (match(">", ">=", "<", "<=")) {
-      Token operator = previous();
-      Expression right = addition();
-      expression = new Expression.Binary(expression, operator, right);
+  private Expression prefix() {
+    if (check(Bang) || check(Minus)) {
+      Token operator = next();
+      Expression right = prefix();
+      return new Expression.Unary(operator, right);
     }
 
-    return expression;
-  }
+    if (match(BooleanLiteral))
+      return new Expression.Literal(Boolean.parseBoolean(previous().lexeme));
+    if (match(NullLiteral))
+      return new Expression.Literal(null);
 
-/*
- * addition → multiplication ( ( "-" | "+" ) multiplication )* zero or more
- */
-  private Expression addition() {
-    Expression expression = multiplication();
+    if (match(NumberLiteral, IntegerLiteral, StringLiteral)) {
+      return new Expression.Literal(previous().literal);
+    }
 
-    while (match("-", "+")) {
-      Token operator = previous();
-      Expression right = multiplication();
-      expression = new Expression.Binary(expression, operator, right);
+    if (match(Identifier)) {
+      return new Expression.Variable(previous());
+    }
+
+    if (check(LeftParen)) {
+      return group();
     }
 
-    return expression;
+    throw error(current(), "Expect expression."); 
   }
 
-/*
- * multiplication → unary ( ( "/" | "*" ) unary )* zero or more
- */
-  private Expression multiplication() {
-    Expression expression = unary();
+  /*
+   * The same grammar as expression() and prefix(), emitting arena nodes.
+   */
+  private int expression(ExpressionArena arena, int minimum) {
+    int expression = prefix(arena);
 
-    while (match("/", "*")) {
-      Token operator = previous();
-      Expression right = unary();
-      expression = new Expression.Binary(expression, operator, right);
-    }
+    for (;;) {
+      int binding = precedence[current.kind.ordinal()];
+      if (binding == 0 || binding < minimum) {
+        return expression;
+      }
 
-    return expression;
+      Token operator = next();
+      int right = expression(arena, binding + 1);
+      expression = arena.binary(expression, operator, right);
+    }
   }
 
-/*
- * unary → ( "!" | "-" ) unary | primary ;
- */
-  private Expression unary() {
-    if (match("!", "-")) {
-      Token operator = previous();
-      Expression right = unary();
-      return new Expression.Unary(operator, right);
+  private int prefix(ExpressionArena arena) {
+    if (check(Bang) || check(Minus)) {
+      Token operator = next();
+      int right = prefix(arena);
+      return arena.unary(operator, right);
     }
 
-    return primary();
-  }
-
-/*
- * primary → NUMBER | STRING | "false" | "true" | "nil" | "(" expression ")" ;
- */
-  private Expression primary() {
     if (match(BooleanLiteral))
-      return new Expression.Literal(Boolean.parseBoolean(previous().lexeme));
+      return arena.literal(Boolean.parseBoolean(previous().lexeme));
     if (match(NullLiteral))
-      return new Expression.Literal(null);
+      return arena.literal(null);
 
-    if (match(NumberLiteral, StringLiteral)) {
-      return new Expression.Literal(previous().literal);
+    if (match(NumberLiteral, IntegerLiteral, StringLiteral)) {
+      return arena.literal(previous().literal);
+    }
+
+    if (match(Identifier)) {
+      return arena.variable(previous());
     }
 
-    if (match("(")) {
-      Expression expression = expression();
-      consume(")", "Expect ')' after expression.");
-      return new Expression.Group(expression);
+    if (match(LeftParen)) {
+      int expression = expression(arena, 1);
+      consume(RightParen, "Expect ')' after expression.");
+      return arena.group(expression);
     }
 
     throw error(current(), "Expect expression."); 
   }
 
+  private Expression group() {
+    int start = index;
+    Token open = current;
+    if (subtrees != null) {
+      Subtree reused = subtrees.find(start);
+      if (reused != null) {
+        // Step over the group without materializing its inner tokens.
+        int length = reused.end - reused.start + 1;
+        tokens.skip(length - 2);
+        index += length - 2;
+        next();
+        next();
+        return reused.expression;
+      }
+    }
+
+    next();
+    Expression expression = expression();
+    consume(RightParen, "Expect ')' after expression.");
+    Expression group = new Expression.Group(expression);
+    if (subtrees != null) {
+      subtrees.add(new Subtree(group, start, index - 1, open.line, open.column));
+    }
+    return group;
+  }
+
   //Needed? match(TokenType... types)
   // TI: Ln 119 Col 9
   private boolean match(TokenType... types) {
@@ -147,9 +303,9 @@ public class Parser {
     return false;
   }
 
-  private boolean match(String... types) {
-    for (String type : types) {
-      if (check(type)) {
+  private boolean match(OperatorKind... kinds) {
+    for (OperatorKind kind : kinds) {
+      if (check(kind)) {
         next();
         return true;
       }
@@ -157,8 +313,8 @@ public class Parser {
     return false;
   }
 
-  private Token consume(String type, String message) {
-    if(check(type)) {
+  private Token consume(OperatorKind kind, String message) {
+    if(check(kind)) {
       return next();
     }
     throw error(current(), message);
@@ -171,15 +327,16 @@ public class Parser {
     return current().hasType(type);
   }
 
-  private boolean check(String type) {
-    if (isAtEnd())
-      return false;
-    return current().type == Token.getTokenType(type);
+  private boolean check(OperatorKind kind) {
+    return current.kind == kind;
   }
 
   private Token next() {
-    if (!isAtEnd())
-      current++;
+    if (!isAtEnd()) {
+      previous = current;
+      current = tokens.next();
+      index++;
+    }
     return previous();
   }
 
@@ -188,15 +345,15 @@ public class Parser {
   }
 
   private Token current() {
-    return tokens.get(current);
+    return current;
   }
 
   private Token previous() {
-    return tokens.get(current - 1);
+    return previous;
   }
 
   private ParseError error(Token token, String message) {
-    Metal.error(token, message);                           
+    diagnostics.error(token, message);                           
     return new ParseError();                             
   }
 
@@ -204,27 +361,26 @@ public class Parser {
 *  Looking for next statement
 *  for,if,return,var,etc...
 */
-  // Don't know where synchronize() is being called from TT
-  //
+  // Called by recover() after a syntax error.
   private void synchronize() {                 
     next();
 
     while (!isAtEnd()) {                       
-      if (previous().hasType(Punctuation, ";")) return;
-
-      if (current().hasTypes(
-      Map.ofEntries(
-        Map.entry(Reserved, "class"),
-        Map.entry(Reserved, "fun"),
-        Map.entry(Reserved, "var"),
-        Map.entry(Reserved, "for"),
-        Map.entry(Reserved, "if"),
-        Map.entry(Reserved, "while"),
-        Map.entry(Reserved, "print"),
-        Map.entry(Reserved, "return")
-      ))) {
-        return;
-      }                                  
+      if (previous().kind == Semicolon) return;
+
+      if (current().type == Reserved) {
+        switch (current().lexeme) {
+        case "class":
+        case "fun":
+        case "var":
+        case "for":
+        case "if":
+        case "while":
+        case "print":
+        case "return":
+          return;
+        }
+      }
 
       next();                               
     }                                          
@@ -8,6 +8,28 @@ public abstract class Expression {
    R visitGroupExpression(Group expression);
    R visitLiteralExpression(Literal expression);
    R visitUnaryExpression(Unary expression);
+   R visitVariableExpression(Variable expression);
+  }
+ public interface DoubleVisitor {
+   double visitBinaryExpression(Binary expression);
+   double visitGroupExpression(Group expression);
+   double visitLiteralExpression(Literal expression);
+   double visitUnaryExpression(Unary expression);
+   double visitVariableExpression(Variable expression);
+  }
+ public interface BooleanVisitor {
+   boolean visitBinaryExpression(Binary expression);
+   boolean visitGroupExpression(Group expression);
+   boolean visitLiteralExpression(Literal expression);
+   boolean visitUnaryExpression(Unary expression);
+   boolean visitVariableExpression(Variable expression);
+  }
+ public interface IntVisitor {
+   int visitBinaryExpression(Binary expression);
+   int visitGroupExpression(Group expression);
+   int visitLiteralExpression(Literal expression);
+   int visitUnaryExpression(Unary expression);
+   int visitVariableExpression(Variable expression);
   }
  public static class Binary extends Expression {
    public Binary(Expression left, Token operator, Expression right) {
@@ -20,6 +42,18 @@ public abstract class Expression {
       return visitor.visitBinaryExpression(this);
     }
 
+   public double acceptDouble(DoubleVisitor visitor) {
+      return visitor.visitBinaryExpression(this);
+    }
+
+   public boolean acceptBoolean(BooleanVisitor visitor) {
+      return visitor.visitBinaryExpression(this);
+    }
+
+   public int acceptInt(IntVisitor visitor) {
+      return visitor.visitBinaryExpression(this);
+    }
+
    public final Expression left;
    public final Token operator;
    public final Expression right;
@@ -33,6 +67,18 @@ public abstract class Expression {
       return visitor.visitGroupExpression(this);
     }
 
+   public double acceptDouble(DoubleVisitor visitor) {
+      return visitor.visitGroupExpression(this);
+    }
+
+   public boolean acceptBoolean(BooleanVisitor visitor) {
+      return visitor.visitGroupExpression(this);
+    }
+
+   public int acceptInt(IntVisitor visitor) {
+      return visitor.visitGroupExpression(this);
+    }
+
    public final Expression expression;
   }
  public static class Literal extends Expression {
@@ -44,6 +90,18 @@ public abstract class Expression {
       return visitor.visitLiteralExpression(this);
     }
 
+   public double acceptDouble(DoubleVisitor visitor) {
+      return visitor.visitLiteralExpression(this);
+    }
+
+   public boolean acceptBoolean(BooleanVisitor visitor) {
+      return visitor.visitLiteralExpression(this);
+    }
+
+   public int acceptInt(IntVisitor visitor) {
+      return visitor.visitLiteralExpression(this);
+    }
+
    public final Object value;
   }
  public static class Unary extends Expression {
@@ -56,9 +114,47 @@ public abstract class Expression {
       return visitor.visitUnaryExpression(this);
     }
 
+   public double acceptDouble(DoubleVisitor visitor) {
+      return visitor.visitUnaryExpression(this);
+    }
+
+   public boolean acceptBoolean(BooleanVisitor visitor) {
+      return visitor.visitUnaryExpression(this);
+    }
+
+   public int acceptInt(IntVisitor visitor) {
+      return visitor.visitUnaryExpression(this);
+    }
+
    public final Token operator;
    public final Expression right;
   }
+ public static class Variable extends Expression {
+   public Variable(Token name) {
+      this.name = name;
+  }
+
+   public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitVariableExpression(this);
+    }
+
+   public double acceptDouble(DoubleVisitor visitor) {
+      return visitor.visitVariableExpression(this);
+    }
+
+   public boolean acceptBoolean(BooleanVisitor visitor) {
+      return visitor.visitVariableExpression(this);
+    }
+
+   public int acceptInt(IntVisitor visitor) {
+      return visitor.visitVariableExpression(this);
+    }
+
+   public final Token name;
+  }
 
  public abstract <R> R accept(Visitor<R> visitor);
+ public abstract double acceptDouble(DoubleVisitor visitor);
+ public abstract boolean acceptBoolean(BooleanVisitor visitor);
+ public abstract int acceptInt(IntVisitor visitor);
 }
@@ -0,0 +1,217 @@
+package metal.frontend.parser.grammar;
+
+import java.util.Arrays;
+
+import metal.frontend.scanner.OperatorKind;
+import metal.frontend.scanner.Token;
+import metal.frontend.scanner.TokenType;
+
+// Flat storage for expression trees. A node is an index into parallel
+// primitive arrays rather than an object: its kind and operator (packed
+// into one int), two operand slots and the position of its operator.
+// Operands are child node indices, except for literals and variables:
+// their first slot is an index into the constant pool, holding the value
+// or the name, and a variable's second slot is the name's symbol. Children
+// are always added before their parent, so the nodes are in post order and
+// a plain loop over the indices is a bottom-up walk of every tree in the
+// arena.
+public class ExpressionArena {
+  public static final int BINARY = 0;
+  public static final int GROUP = 1;
+  public static final int LITERAL = 2;
+  public static final int UNARY = 3;
+  public static final int VARIABLE = 4;
+
+  private static final OperatorKind[] operators = OperatorKind.values();
+
+  public interface Visitor<R> {
+    R visitBinary(ExpressionArena arena, int node);
+    R visitGroup(ExpressionArena arena, int node);
+    R visitLiteral(ExpressionArena arena, int node);
+    R visitUnary(ExpressionArena arena, int node);
+    R visitVariable(ExpressionArena arena, int node);
+  }
+
+  private int[] nodes = new int[64];
+  private int[] lefts = new int[64];
+  private int[] rights = new int[64];
+  private int[] lines = new int[64];
+  private int[] columns = new int[64];
+  private int count = 0;
+
+  private Object[] constants = new Object[16];
+  private int constantCount = 0;
+
+  public int size() {
+    return count;
+  }
+
+  public void clear() {
+    truncate(0);
+  }
+
+  /**
+   * Drops every node added since the arena had the given size, along with
+   * their constants.
+   */
+  public void truncate(int size) {
+    // Constants are added in node order, so the last literal or variable
+    // left holds the last constant still in use.
+    int constantSize = 0;
+    for (int node = size - 1; node >= 0; node--) {
+      int kind = kind(node);
+      if (kind == LITERAL || kind == VARIABLE) {
+        constantSize = lefts[node] + 1;
+        break;
+      }
+    }
+    count = size;
+    Arrays.fill(constants, constantSize, constantCount, null);
+    constantCount = constantSize;
+  }
+
+  public int binary(int left, Token operator, int right) {
+    return add(BINARY, operator.kind, left, right, operator.line, operator.column);
+  }
+
+  public int group(int expression) {
+    return add(GROUP, OperatorKind.None, expression, -1, 0, 0);
+  }
+
+  public int literal(Object value) {
+    return add(LITERAL, OperatorKind.None, constant(value), -1, 0, 0);
+  }
+
+  public int unary(Token operator, int right) {
+    return add(UNARY, operator.kind, -1, right, operator.line, operator.column);
+  }
+
+  public int variable(Token name) {
+    return add(VARIABLE, OperatorKind.None, constant(name.lexeme), name.symbol, name.line, name.column);
+  }
+
+  private int constant(Object value) {
+    if (constantCount == constants.length) {
+      constants = Arrays.copyOf(constants, constantCount * 2);
+    }
+    constants[constantCount] = value;
+    return constantCount++;
+  }
+
+  private int add(int kind, OperatorKind operator, int left, int right, int line, int column) {
+    if (count == nodes.length) {
+      int capacity = count * 2;
+      nodes = Arrays.copyOf(nodes, capacity);
+      lefts = Arrays.copyOf(lefts, capacity);
+      rights = Arrays.copyOf(rights, capacity);
+      lines = Arrays.copyOf(lines, capacity);
+      columns = Arrays.copyOf(columns, capacity);
+    }
+    nodes[count] = kind | operator.ordinal() << 8;
+    lefts[count] = left;
+    rights[count] = right;
+    lines[count] = line;
+    columns[count] = column;
+    return count++;
+  }
+
+  public int kind(int node) {
+    return nodes[node] & 0xff;
+  }
+
+  public OperatorKind operator(int node) {
+    return operators[nodes[node] >>> 8];
+  }
+
+  // Left operand of a binary node, or the inner expression of a group.
+  public int left(int node) {
+    return lefts[node];
+  }
+
+  // Right operand of a binary or unary node.
+  public int right(int node) {
+    return rights[node];
+  }
+
+  // Value of a literal node.
+  public Object constant(int node) {
+    return constants[lefts[node]];
+  }
+
+  // Name of a variable node.
+  public String name(int node) {
+    return (String) constants[lefts[node]];
+  }
+
+  // Symbol of a variable node's name, or -1 if it was not interned.
+  public int symbol(int node) {
+    return rights[node];
+  }
+
+  public int line(int node) {
+    return lines[node];
+  }
+
+  public int column(int node) {
+    return columns[node];
+  }
+
+  public <R> R accept(int node, Visitor<R> visitor) {
+    switch (kind(node)) {
+    case BINARY:
+      return visitor.visitBinary(this, node);
+    case GROUP:
+      return visitor.visitGroup(this, node);
+    case LITERAL:
+      return visitor.visitLiteral(this, node);
+    case VARIABLE:
+      return visitor.visitVariable(this, node);
+    default:
+      return visitor.visitUnary(this, node);
+    }
+  }
+
+  /**
+   * Copies a tree into the arena and returns the index of its root.
+   */
+  public int add(Expression expression) {
+    if (expression instanceof Expression.Binary) {
+      Expression.Binary binary = (Expression.Binary) expression;
+      int left = add(binary.left);
+      return binary(left, binary.operator, add(binary.right));
+    } else if (expression instanceof Expression.Group) {
+      return group(add(((Expression.Group) expression).expression));
+    } else if (expression instanceof Expression.Literal) {
+      return literal(((Expression.Literal) expression).value);
+    } else if (expression instanceof Expression.Variable) {
+      return variable(((Expression.Variable) expression).name);
+    } else {
+      Expression.Unary unary = (Expression.Unary) expression;
+      return unary(unary.operator, add(unary.right));
+    }
+  }
+
+  /**
+   * Rebuilds the tree rooted at a node as Expression objects.
+   */
+  public Expression toExpression(int node) {
+    switch (kind(node)) {
+    case BINARY:
+      return new Expression.Binary(toExpression(lefts[node]), operatorToken(node), toExpression(rights[node]));
+    case GROUP:
+      return new Expression.Group(toExpression(lefts[node]));
+    case LITERAL:
+      return new Expression.Literal(constant(node));
+    case VARIABLE:
+      return new Expression.Variable(new Token(TokenType.Identifier, OperatorKind.None, name(node), null,
+          lines[node], columns[node], symbol(node)));
+    default:
+      return new Expression.Unary(operatorToken(node), toExpression(rights[node]));
+    }
+  }
+
+  private Token operatorToken(int node) {
+    OperatorKind kind = operator(node);
+    return new Token(kind.type, kind, kind.lexeme, null, lines[node], columns[node]);
+  }
+}
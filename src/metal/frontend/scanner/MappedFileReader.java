@@ -0,0 +1,130 @@
+package metal.frontend.scanner;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Reads a UTF-8 file through a memory mapping. Bytes are decoded straight
+// from the mapped pages into the caller's buffer: ASCII, which is all the
+// scanner needs outside of string literals, is a plain widening copy and
+// only multi-byte sequences go through the decoder below. The file is
+// never copied into a heap byte[] or a String.
+public class MappedFileReader extends Reader {
+  // Files are mapped in regions so that inputs over 2GB can be read too.
+  private static final long REGION_SIZE = 64L << 20;
+  private static final char REPLACEMENT = '\uFFFD';
+
+  private final FileChannel channel;
+  private final long size;
+  // File offset of the first byte of the current region.
+  private long offset = 0;
+  private MappedByteBuffer region;
+  // Second half of a surrogate pair that did not fit in the last read.
+  private char pending = 0;
+
+  public MappedFileReader(Path path) throws IOException {
+    this.channel = FileChannel.open(path, StandardOpenOption.READ);
+    this.size = channel.size();
+    this.region = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(REGION_SIZE, size));
+  }
+
+  @Override
+  public int read(char[] buffer, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+
+    int count = 0;
+    if (pending != 0) {
+      buffer[off + count++] = pending;
+      pending = 0;
+    }
+
+    while (count < len) {
+      // Keep a whole UTF-8 sequence inside the region.
+      if (region.remaining() < 4 && offset + region.limit() < size) {
+        remap();
+      }
+      if (!region.hasRemaining()) {
+        break;
+      }
+
+      byte b = region.get();
+      if (b >= 0) {
+        buffer[off + count++] = (char) b;
+        continue;
+      }
+
+      int codePoint = decode(b);
+      if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+        buffer[off + count++] = (char) codePoint;
+      } else {
+        buffer[off + count++] = Character.highSurrogate(codePoint);
+        char low = Character.lowSurrogate(codePoint);
+        if (count < len) {
+          buffer[off + count++] = low;
+        } else {
+          pending = low;
+        }
+      }
+    }
+
+    return count == 0 ? -1 : count;
+  }
+
+  /*
+   * Decodes the rest of a multi-byte sequence starting with the given lead
+   * byte. Malformed input decodes to U+FFFD.
+   */
+  private int decode(byte lead) {
+    int continuations;
+    int codePoint;
+    int minimum;
+    if ((lead & 0xE0) == 0xC0) {
+      continuations = 1;
+      codePoint = lead & 0x1F;
+      minimum = 0x80;
+    } else if ((lead & 0xF0) == 0xE0) {
+      continuations = 2;
+      codePoint = lead & 0x0F;
+      minimum = 0x800;
+    } else if ((lead & 0xF8) == 0xF0) {
+      continuations = 3;
+      codePoint = lead & 0x07;
+      minimum = 0x10000;
+    } else {
+      return REPLACEMENT;
+    }
+
+    for (int i = 0; i < continuations; i++) {
+      if (!region.hasRemaining()) {
+        return REPLACEMENT;
+      }
+      byte b = region.get(region.position());
+      if ((b & 0xC0) != 0x80) {
+        return REPLACEMENT;
+      }
+      region.get();
+      codePoint = (codePoint << 6) | (b & 0x3F);
+    }
+
+    if (codePoint < minimum || codePoint > Character.MAX_CODE_POINT
+        || (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+      return REPLACEMENT;
+    }
+    return codePoint;
+  }
+
+  private void remap() throws IOException {
+    offset += region.position();
+    region = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(REGION_SIZE, size - offset));
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
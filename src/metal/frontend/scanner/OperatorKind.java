@@ -0,0 +1,62 @@
+package metal.frontend.scanner;
+
+import static metal.frontend.scanner.TokenType.*;
+
+// The exact operator or punctuation a token stands for. Assigned once by
+// the Scanner so that later stages compare enum constants instead of
+// looking lexemes up.
+public enum OperatorKind {
+  /* Not an operator or punctuation */
+  None(OtherType, ""),
+
+  /* Operators */
+  Plus(Operator, "+"),
+  Minus(Operator, "-"),
+  Star(Operator, "*"),
+  Slash(Operator, "/"),
+  Bang(Operator, "!"),
+  Equal(Operator, "="),
+  Less(Operator, "<"),
+  Greater(Operator, ">"),
+  Dot(Operator, "."),
+  PlusEqual(Operator, "+="),
+  MinusEqual(Operator, "-="),
+  StarEqual(Operator, "*="),
+  SlashEqual(Operator, "/="),
+  BangEqual(Operator, "!="),
+  EqualEqual(Operator, "=="),
+  LessEqual(Operator, "<="),
+  GreaterEqual(Operator, ">="),
+  DotEqual(Operator, ".="),
+
+  /* Punctuations */
+  LeftParen(Punctuation, "("),
+  RightParen(Punctuation, ")"),
+  LeftBrace(Punctuation, "{"),
+  RightBrace(Punctuation, "}"),
+  Comma(Punctuation, ","),
+  Semicolon(Punctuation, ";");
+
+  public final TokenType type;
+  public final String lexeme;
+
+  // Cached so packed token storage can map ordinals back without copying.
+  static final OperatorKind[] values = values();
+
+  OperatorKind(TokenType type, String lexeme) {
+    this.type = type;
+    this.lexeme = lexeme;
+  }
+
+  /**
+   * Finds the kind of an operator or punctuation lexeme, or None.
+   */
+  public static OperatorKind of(String lexeme) {
+    for (OperatorKind kind : values) {
+      if (kind != None && kind.lexeme.equals(lexeme)) {
+        return kind;
+      }
+    }
+    return None;
+  }
+}
@@ -1,16 +1,50 @@
 package metal.frontend.scanner;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 
 import static metal.frontend.scanner.TokenType.*;
 import metal.frontend.scanner.Token;
-import metal.Metal;
+import metal.frontend.Diagnostics;
 
-public class Scanner {
-  private final String source;
-  private final List<Token> tokens = new ArrayList<>();
+// Scans tokens on demand. Sources read through a Reader are held in a
+// bounded window that only ever keeps the lexeme being scanned, so memory
+// use does not depend on the size of the input.
+public class Scanner implements TokenStream {
+  private static final int BUFFER_SIZE = 8192;
+
+  private final Reader reader;
+  private final Diagnostics diagnostics;
+  // Replaces diagnostics for TokenBuffer, which needs source offsets.
+  private final ErrorListener listener;
+  private char[] buffer;
+  // Number of valid characters in the buffer.
+  private int limit;
+  // Whether the reader has no more input.
+  private boolean exhausted;
+
+  // Type and operator kind of the token scanned by the last call to
+  // scanToken(). Tokens are only materialized when they are pulled through
+  // next().
+  private TokenType pending;
+  private OperatorKind pendingKind = OperatorKind.None;
+  private int pendingSymbol = -1;
+  // Shared lexeme of a keyword, operator or identifier, so that none of
+  // them is copied out of the buffer.
+  private String pendingLexeme;
+  // Allocated on the first identifier, since most one-line scripts have
+  // none.
+  private SymbolTable symbols;
+  private boolean ended = false;
 
   private int start = 0;
   private int position = 0;
@@ -18,72 +52,220 @@ public class Scanner {
   private int column = 1;
 
   public Scanner(String source) {
-    this.source = source;
+    this(source, new Diagnostics());
   }
 
-  public List<Token> scanTokens() {
-    while (!isAtEnd()) {
+  public Scanner(String source, Diagnostics diagnostics) {
+    this.reader = null;
+    this.diagnostics = diagnostics;
+    this.listener = null;
+    this.buffer = source.toCharArray();
+    this.limit = buffer.length;
+    this.exhausted = true;
+  }
+
+  public Scanner(Reader reader) {
+    this(reader, new Diagnostics());
+  }
+
+  public Scanner(Reader reader, Diagnostics diagnostics) {
+    this.reader = reader;
+    this.diagnostics = diagnostics;
+    this.listener = null;
+    this.buffer = new char[BUFFER_SIZE];
+    this.limit = 0;
+    this.exhausted = false;
+  }
+
+  public Scanner(ReadableByteChannel channel) {
+    this(channel, new Diagnostics());
+  }
+
+  public Scanner(ReadableByteChannel channel, Diagnostics diagnostics) {
+    this(Channels.newReader(channel, StandardCharsets.UTF_8), diagnostics);
+  }
+
+  /*
+   * Receives errors with the offset in the source at which they were found,
+   * rather than a line and column. TokenBuffer keeps them that way so that
+   * it can move them along with the text when it is edited.
+   */
+  interface ErrorListener {
+    void error(int offset, String message);
+  }
+
+  /*
+   * Scans part of an in-memory source, starting at a token boundary.
+   */
+  Scanner(char[] source, int length, int position, int line, int column, ErrorListener listener) {
+    this.reader = null;
+    this.diagnostics = null;
+    this.listener = listener;
+    this.buffer = source;
+    this.limit = length;
+    this.exhausted = true;
+    this.position = position;
+    this.line = line;
+    this.column = column;
+  }
+
+  /*
+   * Scans the next token without materializing it, leaving its type, kind
+   * and bounds in the scanner. Returns false at the end of the input.
+   */
+  boolean scanNext() {
+    pending = null;
+    while (pending == null) {
       // We are at the beginning of the next lexeme.
       start = position;
+      if (isAtEnd()) {
+        return false;
+      }
       scanToken();
     }
+    return true;
+  }
+
+  TokenType tokenType() {
+    return pending;
+  }
+
+  OperatorKind tokenKind() {
+    return pendingKind;
+  }
+
+  /**
+   * Where errors found while scanning are collected.
+   */
+  public Diagnostics diagnostics() {
+    return diagnostics;
+  }
+
+  int tokenSymbol() {
+    return pendingSymbol;
+  }
+
+  /**
+   * The identifiers scanned so far; Token.symbol indexes into it.
+   */
+  public SymbolTable symbols() {
+    if (symbols == null) {
+      symbols = new SymbolTable();
+    }
+    return symbols;
+  }
+
+  int tokenStart() {
+    return start;
+  }
+
+  int tokenEnd() {
+    return position;
+  }
 
-    tokens.add(new Token(EOF, "", null, line, column));
+  public List<Token> scanTokens() {
+    List<Token> tokens = new ArrayList<>();
+    while (hasNext()) {
+      tokens.add(next());
+    }
     return tokens;
   }
 
+  @Override
+  public boolean hasNext() {
+    return !ended;
+  }
+
+  @Override
+  public Token next() {
+    if (ended) {
+      throw new NoSuchElementException();
+    }
+
+    if (!scanNext()) {
+      ended = true;
+      return new Token(EOF, "", null, line, column);
+    }
+
+    TokenType type = pending;
+    pending = null;
+    String lexeme = pendingLexeme != null ? pendingLexeme : lexeme();
+    return new Token(type, pendingKind, lexeme, literal(type, buffer, start, position - start), line, column, pendingSymbol);
+  }
+
   private boolean isAtEnd() {
-    return position >= source.length();
+    return !ensure(1);
   }
 
   private void scanToken() {
-    char c = next();
+    char c = advance();
     switch (c) {
     case '(':
+      addToken(OperatorKind.LeftParen);
+      break;
     case ')':
+      addToken(OperatorKind.RightParen);
+      break;
     case '{':
+      addToken(OperatorKind.LeftBrace);
+      break;
     case '}':
+      addToken(OperatorKind.RightBrace);
+      break;
     case ',':
+      addToken(OperatorKind.Comma);
+      break;
     case ';':
-    addToken(Punctuation);
-    break;
+      addToken(OperatorKind.Semicolon);
+      break;
     case '-':
+      addToken(match('=') ? OperatorKind.MinusEqual : OperatorKind.Minus);
+      break;
     case '+':
+      addToken(match('=') ? OperatorKind.PlusEqual : OperatorKind.Plus);
+      break;
     case '*':
+      addToken(match('=') ? OperatorKind.StarEqual : OperatorKind.Star);
+      break;
     case '!':
-    if (match('=')) {
-      addToken(Operator);
+      addToken(match('=') ? OperatorKind.BangEqual : OperatorKind.Bang);
       break;
-    }
-    addToken(Operator);
-    break;
     case '.':
+      addToken(match('=') ? OperatorKind.DotEqual : OperatorKind.Dot);
+      break;
     case '=':
+      addToken(match('=') ? OperatorKind.EqualEqual : OperatorKind.Equal);
+      break;
     case '<':
+      addToken(match('=') ? OperatorKind.LessEqual : OperatorKind.Less);
+      break;
     case '>':
-      if (match('=')) {
-        addToken(Operator);
-        break;
-      }
-      addToken(Operator);
+      addToken(match('=') ? OperatorKind.GreaterEqual : OperatorKind.Greater);
       break;
     case '/':
       if (match('*')) {
-        while (((current() != '*') && (peek() != '/')) && !isAtEnd())
-          next();
+        while (((current() != '*') && (peek() != '/')) && !isAtEnd()) {
+          if (current() == '\n') {
+            line++;
+            // reset column on new line; advance() moves it past the newline
+            column = 0;
+          }
+          advance();
+          start = position;
+        }
           
-        next();
-        next();
+        advance();
+        advance();
     
-      } else if (match('=')) {
-        addToken(Operator);
       } else {
-        addToken(Operator);
+        addToken(match('=') ? OperatorKind.SlashEqual : OperatorKind.Slash);
       }
       break;
     case '#':
-      while (current() != '\n' && !isAtEnd())
-        next();
+      while (current() != '\n' && !isAtEnd()) {
+        advance();
+        start = position;
+      }
       break;
     case '"':
     case '\'':
@@ -103,7 +285,7 @@ public class Scanner {
       } else if (isAlpha(c)) {
         identifier();
       } else {
-        Metal.error(line, column, "Unexpected character '" + c + "'.");
+        error("Unexpected character '" + c + "'.");
       }
       break;
     }
@@ -113,58 +295,114 @@ public class Scanner {
     while (((current() != '"') && (current() != '\'')) && !isAtEnd()) {
       if (current() == '\n') {
         line++;
-        // reset column on new line
-        column = 1;
+        // reset column on new line; advance() moves it past the newline
+        column = 0;
       }
-      next();
+      advance();
     }
 
     // Unterminated string.
     if (isAtEnd()) {
-      Metal.error(line, column, "Unterminated string.");
+      error("Unterminated string.");
       return;
     }
 
     // The closing ".
-    next();
+    advance();
 
-    // Trim the surrounding quotes.
-    String value = source.substring(start + 1, position - 1);
-    addToken(StringLiteral, value);
+    addToken(StringLiteral);
   }
 
   private void number() {
     while (isDigit(current()))
-      next();
+      advance();
 
     // Look for a fractional part.
     if (current() == '.' && isDigit(peek())) {
       // Consume the "."
-      next();
+      advance();
 
       while (isDigit(current()))
-        next();
+        advance();
+
+      addToken(NumberLiteral);
+      return;
     }
 
-    addToken(NumberLiteral, Double.parseDouble(source.substring(start, position)));
+    addToken(integer(buffer, start, position - start) < 0 ? NumberLiteral : IntegerLiteral);
   }
 
   private void identifier() {
     while (isAlphaNumeric(current()))
-      next();
+      advance();
 
     // See if the identifier is a reserved word.
-    String lexeme = source.substring(start, position);
-    TokenType type = TokenType.Reserved;
-    if (!Token.isReserved(lexeme))
-      type = Identifier;
-    addToken(type);
+    String keyword = keyword();
+    if (keyword == null) {
+      addToken(Identifier);
+      SymbolTable symbols = symbols();
+      pendingSymbol = symbols.intern(buffer, start, position - start);
+      pendingLexeme = symbols.name(pendingSymbol);
+    } else {
+      addToken(keyword == "true" || keyword == "false" ? BooleanLiteral : keyword == "nil" ? NullLiteral : Reserved);
+      pendingLexeme = keyword;
+    }
+  }
+
+  /*
+   * The reserved word the current lexeme spells, or null. Matched in place
+   * by its first character and then its length and remaining characters.
+   */
+  private String keyword() {
+    switch (buffer[start]) {
+    case 'a': return keyword("and");
+    case 'c': return keyword("class");
+    case 'e': return keyword("else");
+    case 'f':
+      if (position - start > 1) {
+        switch (buffer[start + 1]) {
+        case 'a': return keyword("false");
+        case 'o': return keyword("for");
+        case 'u': return keyword("fun");
+        }
+      }
+      return null;
+    case 'i': return keyword("if");
+    case 'n': return keyword("nil");
+    case 'o': return keyword("or");
+    case 'p': return keyword("print");
+    case 'r': return keyword("return");
+    case 's': return keyword("super");
+    case 't':
+      if (position - start > 1) {
+        switch (buffer[start + 1]) {
+        case 'h': return keyword("this");
+        case 'r': return keyword("true");
+        }
+      }
+      return null;
+    case 'v': return keyword("var");
+    case 'w': return keyword("while");
+    default: return null;
+    }
+  }
+
+  private String keyword(String keyword) {
+    if (position - start != keyword.length()) {
+      return null;
+    }
+    for (int i = 1; i < keyword.length(); i++) {
+      if (buffer[start + i] != keyword.charAt(i)) {
+        return null;
+      }
+    }
+    return keyword;
   }
 
   private boolean match(char expected) {
     if (isAtEnd())
       return false;
-    if (source.charAt(position) != expected)
+    if (buffer[position] != expected)
       return false;
 
     column++;
@@ -175,19 +413,69 @@ public class Scanner {
   private char current() {
     if (isAtEnd())
       return '\0';
-    return source.charAt(position);
+    return buffer[position];
   }
 
-  private char next() {
+  private void error(String message) {
+    if (listener != null) {
+      listener.error(position, message);
+    } else {
+      diagnostics.error(line, column, message);
+    }
+  }
+
+  private char advance() {
+    if (isAtEnd())
+      return '\0';
     column++;
     position++;
-    return source.charAt(position - 1);
+    return buffer[position - 1];
   }
 
   private char peek() {
-    if (position + 1 >= source.length())
+    if (!ensure(2))
       return '\0';
-    return source.charAt(position + 1);
+    return buffer[position + 1];
+  }
+
+  /*
+   * Makes sure at least count characters from the current position are in
+   * the buffer, reading more input if needed.
+   */
+  private boolean ensure(int count) {
+    while (position + count > limit) {
+      if (exhausted)
+        return false;
+      fill();
+    }
+    return true;
+  }
+
+  /*
+   * Discards everything before the current lexeme and reads more input
+   * after it. The buffer only grows when a single lexeme outgrows it.
+   */
+  private void fill() {
+    if (start > 0) {
+      System.arraycopy(buffer, start, buffer, 0, limit - start);
+      limit -= start;
+      position -= start;
+      start = 0;
+    }
+    if (limit == buffer.length) {
+      buffer = Arrays.copyOf(buffer, buffer.length * 2);
+    }
+
+    try {
+      int read = reader.read(buffer, limit, buffer.length - limit);
+      if (read < 0) {
+        exhausted = true;
+      } else {
+        limit += read;
+      }
+    } catch (IOException error) {
+      throw new UncheckedIOException(error);
+    }
   }
 
   private boolean isDigit(char c) {
@@ -202,12 +490,108 @@ public class Scanner {
     return isAlpha(c) || isDigit(c);
   }
 
+  private String lexeme() {
+    return new String(buffer, start, position - start);
+  }
+
   private void addToken(TokenType type) {
-    addToken(type, null);
+    pending = type;
+    pendingKind = OperatorKind.None;
+    pendingSymbol = -1;
+    pendingLexeme = null;
+  }
+
+  private void addToken(OperatorKind kind) {
+    pending = kind.type;
+    pendingKind = kind;
+    pendingSymbol = -1;
+    pendingLexeme = kind.lexeme;
+  }
+
+  // Boxed values of the most common integer literals, shared by every
+  // token and filled in as they are first used.
+  private static final Double[] SMALL_INTEGERS = new Double[1024];
+  // Powers of ten that are exact doubles.
+  private static final double[] POWERS_OF_TEN = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+    1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+  };
+  // Largest integer up to which every integer is an exact double.
+  private static final long EXACT = 1L << 53;
+
+  /*
+   * Value of a run of decimal digits, or -1 if it does not fit in a long.
+   */
+  static long integer(char[] source, int start, int length) {
+    long value = 0;
+    for (int i = start; i < start + length; i++) {
+      int digit = source[i] - '0';
+      if (value > (Long.MAX_VALUE - digit) / 10) {
+        return -1;
+      }
+      value = value * 10 + digit;
+    }
+    return value;
+  }
+
+  /*
+   * Value of a number with a fractional part, read straight from the
+   * digits. When the digits without the point form an integer that is an
+   * exact double and the power of ten dividing it is one too, a single
+   * division gives the correctly rounded result; anything longer goes
+   * through Double.parseDouble.
+   */
+  static double number(char[] source, int start, int length) {
+    long mantissa = 0;
+    int fraction = -1;
+    for (int i = start; i < start + length; i++) {
+      char c = source[i];
+      if (c == '.') {
+        fraction = 0;
+        continue;
+      }
+      mantissa = mantissa * 10 + (c - '0');
+      if (mantissa > EXACT) {
+        return Double.parseDouble(new String(source, start, length));
+      }
+      if (fraction >= 0) {
+        fraction++;
+      }
+    }
+
+    if (fraction < 0) {
+      return mantissa;
+    }
+    if (fraction >= POWERS_OF_TEN.length) {
+      return Double.parseDouble(new String(source, start, length));
+    }
+    return mantissa / POWERS_OF_TEN[fraction];
   }
 
-  private void addToken(TokenType type, Object literal) {
-    String lexeme = source.substring(start, position);
-    tokens.add(new Token(type, lexeme, literal, line, column));
+  /*
+   * Computes the value of a literal token from its lexeme.
+   */
+  static Object literal(TokenType type, char[] source, int start, int length) {
+    switch (type) {
+    case IntegerLiteral:
+      long integer = integer(source, start, length);
+      if (integer >= SMALL_INTEGERS.length) {
+        return Double.valueOf(integer);
+      }
+      // Racing threads at worst box the same value twice.
+      Double boxed = SMALL_INTEGERS[(int) integer];
+      if (boxed == null) {
+        boxed = (double) integer;
+        SMALL_INTEGERS[(int) integer] = boxed;
+      }
+      return boxed;
+    case NumberLiteral:
+      return number(source, start, length);
+    case StringLiteral:
+      // Trim the surrounding quotes.
+      return new String(source, start + 1, length - 2);
+    default:
+      return null;
+    }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,92 @@
+package metal.frontend.scanner;
+
+import java.util.Arrays;
+
+// Interns identifier names. Each distinct name is stored once and numbered
+// in order of first appearance, so later stages can hold and compare names
+// as int symbols. Lookups hash the characters in place, so a name that was
+// seen before is found without creating a String.
+public class SymbolTable {
+  private String[] names = new String[64];
+  private int[] hashes = new int[64];
+  private int count = 0;
+
+  // Open-addressed table of symbol + 1, with 0 for an empty slot. The
+  // capacity is a power of two and is kept under half full.
+  private int[] slots = new int[128];
+
+  public int size() {
+    return count;
+  }
+
+  public String name(int symbol) {
+    return names[symbol];
+  }
+
+  public int intern(String name) {
+    return intern(name.toCharArray(), 0, name.length());
+  }
+
+  public int intern(char[] source, int start, int length) {
+    int hash = 0;
+    for (int i = start; i < start + length; i++) {
+      hash = 31 * hash + source[i];
+    }
+
+    int mask = slots.length - 1;
+    int slot = mix(hash) & mask;
+    for (;;) {
+      int entry = slots[slot];
+      if (entry == 0) {
+        break;
+      }
+      int symbol = entry - 1;
+      if (hashes[symbol] == hash && matches(names[symbol], source, start, length)) {
+        return symbol;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    if (count == names.length) {
+      names = Arrays.copyOf(names, count * 2);
+      hashes = Arrays.copyOf(hashes, count * 2);
+    }
+    int symbol = count++;
+    names[symbol] = new String(source, start, length);
+    hashes[symbol] = hash;
+    slots[slot] = symbol + 1;
+    if (count * 2 > slots.length) {
+      rehash();
+    }
+    return symbol;
+  }
+
+  private static boolean matches(String name, char[] source, int start, int length) {
+    if (name.length() != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (name.charAt(i) != source[start + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void rehash() {
+    slots = new int[slots.length * 2];
+    int mask = slots.length - 1;
+    for (int symbol = 0; symbol < count; symbol++) {
+      int slot = mix(hashes[symbol]) & mask;
+      while (slots[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      slots[slot] = symbol + 1;
+    }
+  }
+
+  // Spreads the high bits of String-style hashes into the low ones.
+  private static int mix(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+}
@@ -1,7 +1,6 @@
 package metal.frontend.scanner;
 
-import java.text.*;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Map;
 
 import static metal.frontend.scanner.TokenType.*;
@@ -9,68 +8,38 @@ import metal.frontend.scanner.Token;
 
 public class Token {
   public final TokenType type;
+  public final OperatorKind kind;
   public final String lexeme;
   public final Object literal;
   public final int line;
   public final int column;
+  // Symbol table index of an identifier's name, or -1 for other tokens.
+  public final int symbol;
 
-  private static final Map<String, TokenType> reserved;
-  private static final Map<String, TokenType> operators;
-  private static final Map<String, TokenType> punctuations;
-
-  static {
-    reserved = new HashMap<>();
-    reserved.put("and", Reserved);
-    reserved.put("class", Reserved);
-    reserved.put("else", Reserved);
-    reserved.put("false", Reserved);
-    reserved.put("for", Reserved);
-    reserved.put("fun", Reserved);
-    reserved.put("if", Reserved);
-    reserved.put("nil", Reserved);
-    reserved.put("or", Reserved);
-    reserved.put("print", Reserved);
-    reserved.put("return", Reserved);
-    reserved.put("super", Reserved);
-    reserved.put("this", Reserved);
-    reserved.put("true", Reserved);
-    reserved.put("var", Reserved);
-    reserved.put("while", Reserved);
-
-    operators = new HashMap<>();
-    operators.put("+", Operator);
-    operators.put("-", Operator);
-    operators.put("*", Operator);
-    operators.put("/", Operator);
-    operators.put("!", Operator);
-    operators.put("=", Operator);
-    operators.put("<", Operator);
-    operators.put(">", Operator);
-    operators.put("+=", Operator);
-    operators.put("-=", Operator);
-    operators.put("*=", Operator);
-    operators.put("/=", Operator);
-    operators.put("!=", Operator);
-    operators.put("==", Operator);
-    operators.put("<=", Operator);
-    operators.put(">=", Operator);
-    operators.put(".", Operator);
-
-    punctuations = new HashMap<>();
-    punctuations.put("(", Punctuation);
-    punctuations.put(")", Punctuation);
-    punctuations.put("{", Punctuation);
-    punctuations.put("}", Punctuation);
-    punctuations.put(",", Punctuation);
-    punctuations.put(";", Punctuation);
-  }
+  // Sorted for binary search. A constant array rather than a map, so that
+  // loading Token builds no tables; the Scanner matches keywords itself.
+  private static final String[] RESERVED = {
+    "and", "class", "else", "false", "for", "fun", "if", "nil",
+    "or", "print", "return", "super", "this", "true", "var", "while",
+  };
 
   public Token(TokenType type, String lexeme, Object literal, int line, int column) {
+    this(type, type == Operator || type == Punctuation ? OperatorKind.of(lexeme) : OperatorKind.None,
+        lexeme, literal, line, column);
+  }
+
+  public Token(TokenType type, OperatorKind kind, String lexeme, Object literal, int line, int column) {
+    this(type, kind, lexeme, literal, line, column, -1);
+  }
+
+  public Token(TokenType type, OperatorKind kind, String lexeme, Object literal, int line, int column, int symbol) {
     this.type = type;
+    this.kind = kind;
     this.lexeme = lexeme;
     this.literal = literal;
     this.line = line;
     this.column = column;
+    this.symbol = symbol;
   }
 
   public String toString() {
@@ -105,15 +74,15 @@ public class Token {
   }
 
   public static Boolean isReserved(String lexeme) {
-    return reserved.get(lexeme) != null;
+    return Arrays.binarySearch(RESERVED, lexeme) >= 0;
   }
 
   public static Boolean isOperator(String lexeme) {
-    return operators.get(lexeme) != null;
+    return OperatorKind.of(lexeme).type == Operator;
   }
 
   public static Boolean isPunctuation(String lexeme) {
-    return punctuations.get(lexeme) != null;
+    return OperatorKind.of(lexeme).type == Punctuation;
   }
 
   public static Boolean isBooleanLiteral(String lexeme) {
@@ -124,14 +93,20 @@ public class Token {
     return lexeme == "null";
   }
 
+  // Digits with an optional fractional part, as the Scanner reads them.
   public static Boolean isNumberLiteral(String lexeme) {
-    DecimalFormat decimalFormat = new DecimalFormat("#");
-    try {
-      decimalFormat.parse(lexeme).doubleValue();
-      return true;
-   } catch (ParseException e) {
+    int point = lexeme.indexOf('.');
+    int end = point < 0 ? lexeme.length() : point;
+    if (end == 0 || (point >= 0 && point == lexeme.length() - 1)) {
       return false;
-   }
+    }
+    for (int i = 0; i < lexeme.length(); i++) {
+      char c = lexeme.charAt(i);
+      if ((c < '0' || c > '9') && i != point) {
+        return false;
+      }
+    }
+    return true;
   }
 
   public static Boolean isStringLiteral(String literal) {
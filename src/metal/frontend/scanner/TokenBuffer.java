@@ -0,0 +1,323 @@
+package metal.frontend.scanner;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import metal.frontend.Diagnostics;
+
+// Packed, struct-of-arrays storage for the tokens of a source. Each token
+// is a type and operator kind (packed into one int), a start offset and a
+// length; lexemes and literal values are sliced out of the source on
+// demand, and line/column positions are only resolved (from a lazily built
+// line-start index) when asked for.
+//
+// Lexical errors are kept by source offset, like the tokens, so that an
+// edit can replace the ones in the rescanned window and shift the rest;
+// report() resolves their positions.
+public class TokenBuffer {
+  private char[] source;
+  private int sourceLength;
+
+  private int[] types = new int[64];
+  private int[] starts = new int[64];
+  private int[] lengths = new int[64];
+  private int count = 0;
+
+  // Lexical errors, in source order: the scanner's offset when it found
+  // each one, and its message.
+  private int[] errorOffsets = new int[4];
+  private String[] errorMessages = new String[4];
+  private int errorCount = 0;
+
+  // Names of the identifiers handed out by token().
+  private final SymbolTable symbols = new SymbolTable();
+
+  // Offsets at which each line starts, built on first use.
+  private int[] lineStarts;
+
+  private TokenBuffer(char[] source, int sourceLength) {
+    this.source = source;
+    this.sourceLength = sourceLength;
+  }
+
+  public static TokenBuffer scan(String source) {
+    char[] text = source.toCharArray();
+    TokenBuffer tokens = new TokenBuffer(text, text.length);
+    Scanner scanner = new Scanner(text, text.length, 0, 1, 1, tokens::error);
+    while (scanner.scanNext()) {
+      tokens.add(scanner.tokenType(), scanner.tokenKind(), scanner.tokenStart(), scanner.tokenEnd() - scanner.tokenStart());
+    }
+    tokens.add(TokenType.EOF, OperatorKind.None, text.length, 0);
+    return tokens;
+  }
+
+  /**
+   * The tokens an edit replaced: old tokens [start, oldEnd) became new
+   * tokens [start, newEnd). Tokens from oldEnd on are unchanged apart from
+   * being shifted to newEnd.
+   */
+  public static class Edit {
+    public final int start;
+    public final int oldEnd;
+    public final int newEnd;
+
+    Edit(int start, int oldEnd, int newEnd) {
+      this.start = start;
+      this.oldEnd = oldEnd;
+      this.newEnd = newEnd;
+    }
+  }
+
+  /**
+   * Applies a text edit and rescans only the tokens it can affect: scanning
+   * restarts at the last token ending before the edit and stops as soon as
+   * it produces a token at the (shifted) start of an old token past the
+   * edit. The scanner carries no state between tokens, so everything from
+   * there on would scan the same as before.
+   */
+  public Edit edit(int offset, int removed, String inserted) {
+    if (offset < 0 || removed < 0 || offset + removed > sourceLength) {
+      throw new IndexOutOfBoundsException("Edit out of range.");
+    }
+
+    int delta = inserted.length() - removed;
+    char[] text = new char[sourceLength + delta];
+    System.arraycopy(source, 0, text, 0, offset);
+    inserted.getChars(0, inserted.length(), text, offset);
+    System.arraycopy(source, offset + removed, text, offset + inserted.length(), sourceLength - offset - removed);
+
+    // The token before the first one reaching the edit may merge with the
+    // inserted text (e.g. "12" followed by an inserted "3").
+    int first = firstEndingAtOrAfter(offset) - 1;
+    int restart = 0;
+    if (first < 0) {
+      first = 0;
+    } else {
+      restart = starts[first];
+    }
+    int line = lineOf(restart) + 1;
+    int column = restart - lineStarts[line - 1] + 1;
+    int unchanged = offset + inserted.length();
+
+    // Errors up to the restart are kept, errors after the last rescanned
+    // token are shifted and those in between are found again by the
+    // rescan. The rescan appends its errors, so they are set aside first.
+    int errorsBefore = 0;
+    while (errorsBefore < errorCount && errorOffsets[errorsBefore] <= restart) {
+      errorsBefore++;
+    }
+    int[] laterOffsets = Arrays.copyOfRange(errorOffsets, errorsBefore, errorCount);
+    String[] laterMessages = Arrays.copyOfRange(errorMessages, errorsBefore, errorCount);
+    errorCount = errorsBefore;
+
+    int[] newTypes = new int[16];
+    int[] newStarts = new int[16];
+    int[] newLengths = new int[16];
+    int scanned = 0;
+    int resume = count - 1;
+    Scanner scanner = new Scanner(text, text.length, restart, line, column, this::error);
+    while (scanner.scanNext()) {
+      int start = scanner.tokenStart();
+      if (start >= unchanged) {
+        int old = Arrays.binarySearch(starts, first, count - 1, start - delta);
+        if (old >= 0) {
+          resume = old;
+          break;
+        }
+      }
+      if (scanned == newTypes.length) {
+        newTypes = Arrays.copyOf(newTypes, scanned * 2);
+        newStarts = Arrays.copyOf(newStarts, scanned * 2);
+        newLengths = Arrays.copyOf(newLengths, scanned * 2);
+      }
+      newTypes[scanned] = scanner.tokenType().ordinal() | scanner.tokenKind().ordinal() << 8;
+      newStarts[scanned] = start;
+      newLengths[scanned] = scanner.tokenEnd() - start;
+      scanned++;
+    }
+
+    int resumeStart = starts[resume];
+    for (int i = 0; i < laterOffsets.length; i++) {
+      if (laterOffsets[i] > resumeStart) {
+        error(laterOffsets[i] + delta, laterMessages[i]);
+      }
+    }
+
+    // Splice the rescanned tokens in and shift the rest.
+    int tail = count - resume;
+    int newCount = first + scanned + tail;
+    if (newCount > types.length) {
+      int capacity = Math.max(newCount, types.length * 2);
+      types = Arrays.copyOf(types, capacity);
+      starts = Arrays.copyOf(starts, capacity);
+      lengths = Arrays.copyOf(lengths, capacity);
+    }
+    System.arraycopy(types, resume, types, first + scanned, tail);
+    System.arraycopy(starts, resume, starts, first + scanned, tail);
+    System.arraycopy(lengths, resume, lengths, first + scanned, tail);
+    for (int i = first + scanned; i < newCount; i++) {
+      starts[i] += delta;
+    }
+    System.arraycopy(newTypes, 0, types, first, scanned);
+    System.arraycopy(newStarts, 0, starts, first, scanned);
+    System.arraycopy(newLengths, 0, lengths, first, scanned);
+    count = newCount;
+
+    source = text;
+    sourceLength = text.length;
+    lineStarts = null;
+    return new Edit(first, resume, first + scanned);
+  }
+
+  private void error(int offset, String message) {
+    if (errorCount == errorOffsets.length) {
+      errorOffsets = Arrays.copyOf(errorOffsets, errorCount * 2);
+      errorMessages = Arrays.copyOf(errorMessages, errorCount * 2);
+    }
+    errorOffsets[errorCount] = offset;
+    errorMessages[errorCount] = message;
+    errorCount++;
+  }
+
+  /**
+   * Adds the lexical errors of the current source to diagnostics, with
+   * positions as the Scanner gives them.
+   */
+  public void report(Diagnostics diagnostics) {
+    for (int i = 0; i < errorCount; i++) {
+      int line = lineOf(errorOffsets[i]);
+      diagnostics.error(line + 1, errorOffsets[i] - lineStarts[line] + 1, errorMessages[i]);
+    }
+  }
+
+  /*
+   * Index of the first token whose end is at or after the offset.
+   */
+  private int firstEndingAtOrAfter(int offset) {
+    int low = 0;
+    int high = count - 1;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (starts[middle] + lengths[middle] < offset) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  private void add(TokenType type, OperatorKind kind, int start, int length) {
+    if (count == types.length) {
+      int capacity = count * 2;
+      types = Arrays.copyOf(types, capacity);
+      starts = Arrays.copyOf(starts, capacity);
+      lengths = Arrays.copyOf(lengths, capacity);
+    }
+    types[count] = type.ordinal() | kind.ordinal() << 8;
+    starts[count] = start;
+    lengths[count] = length;
+    count++;
+  }
+
+  /**
+   * Number of tokens, including the trailing EOF.
+   */
+  public int size() {
+    return count;
+  }
+
+  public TokenType type(int index) {
+    return TokenType.values[types[index] & 0xff];
+  }
+
+  public OperatorKind kind(int index) {
+    return OperatorKind.values[types[index] >>> 8];
+  }
+
+  public int start(int index) {
+    return starts[index];
+  }
+
+  public int length(int index) {
+    return lengths[index];
+  }
+
+  public String lexeme(int index) {
+    return new String(source, starts[index], lengths[index]);
+  }
+
+  public Object literal(int index) {
+    return Scanner.literal(type(index), source, starts[index], lengths[index]);
+  }
+
+  // Positions follow the Scanner: they point just past the end of the token.
+  public int line(int index) {
+    return lineOf(starts[index] + lengths[index]) + 1;
+  }
+
+  public int column(int index) {
+    int end = starts[index] + lengths[index];
+    return end - lineStarts[lineOf(end)] + 1;
+  }
+
+  /**
+   * Materializes a single token.
+   */
+  public Token token(int index) {
+    if (type(index) == TokenType.Identifier) {
+      int symbol = symbols.intern(source, starts[index], lengths[index]);
+      return new Token(TokenType.Identifier, OperatorKind.None, symbols.name(symbol), null, line(index), column(index), symbol);
+    }
+    return new Token(type(index), kind(index), lexeme(index), literal(index), line(index), column(index));
+  }
+
+  /**
+   * Streams the buffer to a Parser, creating tokens one at a time as they
+   * are consumed.
+   */
+  public TokenStream stream() {
+    return new TokenStream() {
+      private int index = 0;
+
+      public boolean hasNext() {
+        return index < count;
+      }
+
+      public Token next() {
+        if (index >= count) {
+          throw new NoSuchElementException();
+        }
+        return token(index++);
+      }
+
+      public void skip(int tokens) {
+        index += tokens;
+      }
+    };
+  }
+
+  private int lineOf(int offset) {
+    if (lineStarts == null) {
+      indexLines();
+    }
+    int line = Arrays.binarySearch(lineStarts, offset);
+    // Offsets that are not a line start fall on the line before the
+    // insertion point.
+    return line >= 0 ? line : -line - 2;
+  }
+
+  private void indexLines() {
+    int[] starts = new int[16];
+    int lines = 1;
+    for (int i = 0; i < sourceLength; i++) {
+      if (source[i] == '\n') {
+        if (lines == starts.length) {
+          starts = Arrays.copyOf(starts, lines * 2);
+        }
+        starts[lines++] = i + 1;
+      }
+    }
+    lineStarts = Arrays.copyOf(starts, lines);
+  }
+}
@@ -0,0 +1,35 @@
+package metal.frontend.scanner;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A pull-based source of tokens. The last token of every stream is EOF.
+ */
+public interface TokenStream extends Iterator<Token> {
+
+  /**
+   * Discards the given number of tokens without looking at them.
+   */
+  default void skip(int tokens) {
+    for (int i = 0; i < tokens; i++) {
+      next();
+    }
+  }
+
+  /**
+   * Adapts a list of already scanned tokens.
+   */
+  static TokenStream of(List<Token> tokens) {
+    Iterator<Token> iterator = tokens.iterator();
+    return new TokenStream() {
+      public boolean hasNext() {
+        return iterator.hasNext();
+      }
+
+      public Token next() {
+        return iterator.next();
+      }
+    };
+  }
+}
@@ -5,8 +5,10 @@ public enum TokenType {
   
   // "Hello, World!" or 'Hello, World!'
   StringLiteral,
-  // 12
+  // 1.5
   NumberLiteral,
+  // 12, any whole number that fits in a long
+  IntegerLiteral,
   // true
   BooleanLiteral,
   // null
@@ -27,5 +29,8 @@ public enum TokenType {
   /* Others */
   Invalid,
   EOF,
-  OtherType
+  OtherType;
+
+  // Cached so packed token storage can map ordinals back without copying.
+  static final TokenType[] values = values();
 }
\ No newline at end of file
@@ -6,18 +6,35 @@ import java.util.Arrays;
 import java.util.List;
 
 public class ASTGenerator {
+  // Result types that get a visitor of their own, so that passes computing
+  // primitives do not box the result of every node.
+  private static final String[][] PRIMITIVES = {
+    { "Double", "double" },
+    { "Boolean", "boolean" },
+    { "Int", "int" },
+  };
+
   public static void main(String[] args) throws IOException {
-    if (args.length != 1) {
-      System.err.println("Usage: generate_ast <output directory>");
+    boolean records = args.length == 2 && args[0].equals("--records");
+    if (args.length != 1 && !records) {
+      System.err.println("Usage: generate_ast [--records] <output directory>");
+      System.err.println("  --records writes a standalone sealed-record Expression.java that the rest of");
+      System.err.println("  the tree does not compile against; do not generate it into src.");
       System.exit(1);
     }
-    String outputDir = args[0];
+    String outputDir = args[args.length - 1];
 
-    defineAst(outputDir, "Expression", Arrays.asList(
+    List<String> types = Arrays.asList(
       "Binary   : Expression left, Token operator, Expression right",
       "Group : Expression expression", 
       "Literal  : Object value", 
-      "Unary    : Token operator, Expression right"));
+      "Unary    : Token operator, Expression right",
+      "Variable : Token name");
+    if (records) {
+      defineSealedAst(outputDir, "Expression", types);
+    } else {
+      defineAst(outputDir, "Expression", types);
+    }
   }
 
   private static void defineAst(String outputDir, String baseName, List<String> types) throws IOException {
@@ -26,7 +43,6 @@ public class ASTGenerator {
 
     writer.println("package metal.frontend.parser.grammar;");
     writer.println();
-    writer.println("import java.util.List;");
     writer.println("import metal.frontend.scanner.Token;");
     writer.println();
     writer.println("public abstract class " + baseName + " {");
@@ -41,17 +57,106 @@ public class ASTGenerator {
 
     writer.println();
     writer.println(" public abstract <R> R accept(Visitor<R> visitor);");
+    for (String[] primitive : PRIMITIVES) {
+      writer.println(" public abstract " + primitive[1] + " accept" + primitive[0] + "(" + primitive[0] + "Visitor visitor);");
+    }
 
     writer.println("}");
     writer.close();
   }
 
+  /*
+   * Emits the tree as a sealed interface with a final record per node type.
+   *
+   * The output is standalone: it compiles by itself, but not in place of
+   * the class form in src. Record components are read through accessors
+   * (binary.left()), while the parser, the backends and every other
+   * consumer read public fields (binary.left) and construct nodes with
+   * new. Generate it into a scratch directory.
+   *
+   * Nodes keep accept(Visitor<R>), which goes through dispatch(): a
+   * hand-written chain of instanceof tests over the permitted records. A
+   * pattern switch would compile to an invokedynamic typeSwitch instead,
+   * but it is a preview feature in Java 17. Since every record is final,
+   * each test is an exact class check that HotSpot can profile and inline,
+   * which a megamorphic accept() call cannot be.
+   */
+  private static void defineSealedAst(String outputDir, String baseName, List<String> types) throws IOException {
+    String path = outputDir + "/" + baseName + ".java";
+    PrintWriter writer = new PrintWriter(path, "UTF-8");
+
+    writer.println("package metal.frontend.parser.grammar;");
+    writer.println();
+    writer.println("import metal.frontend.scanner.Token;");
+    writer.println();
+
+    StringBuilder permits = new StringBuilder();
+    for (String type : types) {
+      if (permits.length() > 0) permits.append(", ");
+      permits.append(baseName).append(".").append(type.split(":")[0].trim());
+    }
+    writer.println("public sealed interface " + baseName + " permits " + permits + " {");
+
+    defineVisitor(writer, baseName, types);
+
+    writer.println();
+    for (String type : types) {
+      String className = type.split(":")[0].trim();
+      String fields = type.split(":")[1].trim();
+      writer.println(" record " + className + "(" + fields + ") implements " + baseName + " {}");
+    }
+
+    writer.println();
+    writer.println(" default <R> R accept(Visitor<R> visitor) {");
+    writer.println("   return dispatch(this, visitor);");
+    writer.println(" }");
+    for (String[] primitive : PRIMITIVES) {
+      writer.println();
+      writer.println(" default " + primitive[1] + " accept" + primitive[0] + "(" + primitive[0] + "Visitor visitor) {");
+      writer.println("   return dispatch" + primitive[0] + "(this, visitor);");
+      writer.println(" }");
+    }
+
+    defineDispatch(writer, baseName, types, "<R> R", "dispatch", "Visitor<R>");
+    for (String[] primitive : PRIMITIVES) {
+      defineDispatch(writer, baseName, types, primitive[1], "dispatch" + primitive[0], primitive[0] + "Visitor");
+    }
+
+    writer.println("}");
+    writer.close();
+  }
+
+  private static void defineDispatch(PrintWriter writer, String baseName, List<String> types,
+      String returnType, String name, String visitorType) {
+    String argument = baseName.toLowerCase();
+    writer.println();
+    writer.println(" static " + returnType + " " + name + "(" + baseName + " " + argument + ", " + visitorType + " visitor) {");
+    for (String type : types) {
+      String className = type.split(":")[0].trim();
+      String variable = Character.toLowerCase(className.charAt(0)) + className.substring(1);
+      writer.println("   if (" + argument + " instanceof " + className + " " + variable + ") {");
+      writer.println("     return visitor.visit" + className + baseName + "(" + variable + ");");
+      writer.println("   }");
+    }
+    // Unreachable: the interface is sealed.
+    writer.println("   throw new IllegalStateException(\"Unknown node \" + " + argument + ");");
+    writer.println(" }");
+  }
+
   private static void defineVisitor(PrintWriter writer, String baseName, List<String> types) {
-    writer.println(" public interface Visitor<R> {");
+    defineVisitor(writer, baseName, types, "Visitor<R>", "R");
+    for (String[] primitive : PRIMITIVES) {
+      defineVisitor(writer, baseName, types, primitive[0] + "Visitor", primitive[1]);
+    }
+  }
+
+  private static void defineVisitor(PrintWriter writer, String baseName, List<String> types,
+      String visitorType, String returnType) {
+    writer.println(" public interface " + visitorType + " {");
 
     for (String type : types) {
       String typeName = type.split(":")[0].trim();
-      writer.println("   R visit" + typeName + baseName + "(" + typeName + " " + baseName.toLowerCase() + ");");
+      writer.println("   " + returnType + " visit" + typeName + baseName + "(" + typeName + " " + baseName.toLowerCase() + ");");
     }
 
     writer.println("  }");
@@ -77,6 +182,12 @@ public class ASTGenerator {
      writer.println("   public <R> R accept(Visitor<R> visitor) {");
      writer.println("      return visitor.visit" + className + baseName + "(this);");                   
      writer.println("    }"); 
+    for (String[] primitive : PRIMITIVES) {
+      writer.println();
+      writer.println("   public " + primitive[1] + " accept" + primitive[0] + "(" + primitive[0] + "Visitor visitor) {");
+      writer.println("      return visitor.visit" + className + baseName + "(this);");
+      writer.println("    }");
+    }
 
     // Fields.
     writer.println();
@@ -0,0 +1,89 @@
+package metal.metrics;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+// Process-wide phase counters. Phases are only measured while something
+// wants the numbers: a listener, totals turned on with enable(), or a
+// flight recording with the metal.Phase event enabled.
+public final class Metrics {
+  private static final List<MetricsListener> listeners = new CopyOnWriteArrayList<>();
+  private static volatile boolean collecting = false;
+  // Whether the event is enabled is kept per event class, so one instance
+  // answers for all of them.
+  private static final PhaseEvent probe = new PhaseEvent();
+
+  // Running totals per phase: count, nanos, input bytes, tokens, nodes and
+  // allocated bytes. Created on first use, so that runs without metrics do
+  // not pay for them.
+  private static final class Totals {
+    static final LongAdder[][] counters = new LongAdder[Phase.values().length][6];
+
+    static {
+      for (LongAdder[] phase : counters) {
+        for (int i = 0; i < phase.length; i++) {
+          phase[i] = new LongAdder();
+        }
+      }
+    }
+  }
+
+  private Metrics() {}
+
+  /**
+   * Keeps totals even when no listener or recording is active.
+   */
+  public static void enable() {
+    collecting = true;
+  }
+
+  public static void addListener(MetricsListener listener) {
+    listeners.add(listener);
+  }
+
+  public static void removeListener(MetricsListener listener) {
+    listeners.remove(listener);
+  }
+
+  public static boolean enabled() {
+    return collecting || !listeners.isEmpty() || probe.isEnabled();
+  }
+
+  /**
+   * Totals of a phase over every script measured so far.
+   */
+  public static PhaseStats total(Phase phase) {
+    LongAdder[] counters = Totals.counters[phase.ordinal()];
+    return new PhaseStats(phase, null, counters[0].sum(), counters[1].sum(), counters[2].sum(),
+        counters[3].sum(), counters[4].sum(), counters[5].sum());
+  }
+
+  /**
+   * Writes the totals of every phase, as printed by --stats.
+   */
+  public static void printSummary(PrintStream out) {
+    out.printf("%-9s %7s %10s %10s %10s %10s %12s%n",
+        "phase", "count", "time ms", "input KB", "tokens", "nodes", "alloc KB");
+    for (Phase phase : Phase.values()) {
+      PhaseStats stats = total(phase);
+      out.printf("%-9s %7d %10.2f %10.1f %10d %10d %12.1f%n", phase, stats.count, stats.nanos / 1e6,
+          stats.inputBytes / 1024.0, stats.tokens, stats.nodes, stats.allocatedBytes / 1024.0);
+    }
+  }
+
+  static void record(PhaseStats stats) {
+    LongAdder[] counters = Totals.counters[stats.phase.ordinal()];
+    counters[0].add(stats.count);
+    counters[1].add(stats.nanos);
+    counters[2].add(stats.inputBytes);
+    counters[3].add(stats.tokens);
+    counters[4].add(stats.nodes);
+    counters[5].add(stats.allocatedBytes);
+
+    for (MetricsListener listener : listeners) {
+      listener.onPhase(stats);
+    }
+  }
+}
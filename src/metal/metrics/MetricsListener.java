@@ -0,0 +1,7 @@
+package metal.metrics;
+
+// Receives the counters of every phase as it completes. Called on the
+// thread that ran the phase, possibly from several threads at once.
+public interface MetricsListener {
+  void onPhase(PhaseStats stats);
+}
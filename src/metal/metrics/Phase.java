@@ -0,0 +1,11 @@
+package metal.metrics;
+
+// The stages a script goes through. Scanning is interleaved with parsing,
+// as the parser pulls tokens, so the time spent producing tokens is
+// counted as Scan and the rest as Parse.
+public enum Phase {
+  Scan,
+  Parse,
+  Optimize,
+  Evaluate
+}
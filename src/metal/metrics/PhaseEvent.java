@@ -0,0 +1,41 @@
+package metal.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+@Name("metal.Phase")
+@Label("Metal Phase")
+@Category("Metal")
+@Description("One phase of running a script")
+class PhaseEvent extends Event {
+  @Label("Phase")
+  String phase;
+
+  @Label("Script")
+  String script;
+
+  // Time attributed to the phase. Scan and Parse are interleaved, so
+  // their events both span the parse and this tells them apart.
+  @Label("Elapsed")
+  @Timespan(Timespan.NANOSECONDS)
+  long elapsed;
+
+  @Label("Input Size")
+  @DataAmount
+  long inputBytes;
+
+  @Label("Tokens")
+  long tokens;
+
+  @Label("Nodes")
+  long nodes;
+
+  @Label("Allocated")
+  @DataAmount
+  long allocated;
+}
@@ -0,0 +1,27 @@
+package metal.metrics;
+
+// Counters for one phase of one script, or totals over many.
+public final class PhaseStats {
+  public final Phase phase;
+  // The script, or null for totals.
+  public final String script;
+  // Number of phases summed up; 1 for a single script.
+  public final long count;
+  public final long nanos;
+  public final long inputBytes;
+  public final long tokens;
+  public final long nodes;
+  public final long allocatedBytes;
+
+  public PhaseStats(Phase phase, String script, long count, long nanos, long inputBytes,
+      long tokens, long nodes, long allocatedBytes) {
+    this.phase = phase;
+    this.script = script;
+    this.count = count;
+    this.nanos = nanos;
+    this.inputBytes = inputBytes;
+    this.tokens = tokens;
+    this.nodes = nodes;
+    this.allocatedBytes = allocatedBytes;
+  }
+}
@@ -0,0 +1,166 @@
+package metal.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import metal.frontend.parser.grammar.Expression;
+import metal.frontend.scanner.Token;
+import metal.frontend.scanner.TokenStream;
+
+// Measures the phases of one script on one thread. When metrics are off,
+// start() returns a recorder whose methods do nothing.
+public final class Recorder {
+  private static final Recorder DISABLED = new Recorder(null, 0, false);
+
+  // Loaded by the first enabled recorder; getting the bean initializes
+  // java.lang.management, which runs without metrics should not pay for.
+  private static final class Threads {
+    static final com.sun.management.ThreadMXBean bean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+  }
+
+  private final String script;
+  private final long inputBytes;
+  private final boolean enabled;
+
+  // Start of the current phase. A parse also opens an event for the
+  // scanning interleaved with it.
+  private PhaseEvent event;
+  private PhaseEvent scanEvent;
+  private long started;
+  private long allocated;
+
+  // Share of the current parse spent producing tokens.
+  private long scanNanos;
+  private long scanAllocated;
+  private long tokens;
+
+  private Recorder(String script, long inputBytes, boolean enabled) {
+    this.script = script;
+    this.inputBytes = inputBytes;
+    this.enabled = enabled;
+  }
+
+  public static Recorder start(String script, long inputBytes) {
+    return Metrics.enabled() ? new Recorder(script, inputBytes, true) : DISABLED;
+  }
+
+  /**
+   * Wraps a token stream so that the time and memory spent producing
+   * tokens are counted as scanning.
+   */
+  public TokenStream meter(TokenStream stream) {
+    if (!enabled) {
+      return stream;
+    }
+    return new TokenStream() {
+      public boolean hasNext() {
+        return stream.hasNext();
+      }
+
+      public Token next() {
+        long start = System.nanoTime();
+        long before = allocatedBytes();
+        Token token = stream.next();
+        scanAllocated += allocatedBytes() - before;
+        scanNanos += System.nanoTime() - start;
+        tokens++;
+        return token;
+      }
+
+      public void skip(int count) {
+        stream.skip(count);
+        tokens += count;
+      }
+    };
+  }
+
+  public void begin() {
+    if (!enabled) {
+      return;
+    }
+    event = new PhaseEvent();
+    scanEvent = new PhaseEvent();
+    event.begin();
+    scanEvent.begin();
+    scanNanos = 0;
+    scanAllocated = 0;
+    tokens = 0;
+    allocated = allocatedBytes();
+    started = System.nanoTime();
+  }
+
+  /**
+   * Ends a parse, recording the tokens it pulled as the Scan phase and
+   * the rest as the Parse phase.
+   */
+  public void endParse(Expression tree) {
+    if (!enabled) {
+      return;
+    }
+    long nanos = System.nanoTime() - started;
+    long bytes = allocatedBytes() - allocated;
+    long nodes = count(tree);
+
+    record(scanEvent, Phase.Scan, scanNanos, tokens, 0, scanAllocated);
+    record(event, Phase.Parse, nanos - scanNanos, tokens, nodes, bytes - scanAllocated);
+  }
+
+  public void end(Phase phase, Expression tree) {
+    if (!enabled) {
+      return;
+    }
+    long nanos = System.nanoTime() - started;
+    long bytes = allocatedBytes() - allocated;
+    record(event, phase, nanos, 0, count(tree), bytes);
+  }
+
+  private void record(PhaseEvent event, Phase phase, long nanos, long tokens, long nodes, long bytes) {
+    event.end();
+    if (event.shouldCommit()) {
+      event.phase = phase.name();
+      event.script = script;
+      event.elapsed = nanos;
+      event.inputBytes = inputBytes;
+      event.tokens = tokens;
+      event.nodes = nodes;
+      event.allocated = bytes;
+      event.commit();
+    }
+    Metrics.record(new PhaseStats(phase, script, 1, nanos, inputBytes, tokens, nodes, bytes));
+  }
+
+  private static long allocatedBytes() {
+    return Threads.bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static long count(Expression tree) {
+    return tree == null ? 0 : tree.acceptInt(counter);
+  }
+
+  private static final Expression.IntVisitor counter = new Expression.IntVisitor() {
+    @Override
+    public int visitBinaryExpression(Expression.Binary expression) {
+      return 1 + expression.left.acceptInt(this) + expression.right.acceptInt(this);
+    }
+
+    @Override
+    public int visitGroupExpression(Expression.Group expression) {
+      return 1 + expression.expression.acceptInt(this);
+    }
+
+    @Override
+    public int visitLiteralExpression(Expression.Literal expression) {
+      return 1;
+    }
+
+    @Override
+    public int visitUnaryExpression(Expression.Unary expression) {
+      return 1 + expression.right.acceptInt(this);
+    }
+
+    @Override
+    public int visitVariableExpression(Expression.Variable expression) {
+      return 1;
+    }
+  };
+}
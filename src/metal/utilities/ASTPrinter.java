@@ -1,45 +1,83 @@
 package metal.utilities;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
 import metal.frontend.scanner.Token;
 import metal.frontend.scanner.TokenType;
 import metal.frontend.parser.grammar.Expression;
 // Creates an unambiguous, if ugly, string representation of AST nodes.
-public class ASTPrinter implements Expression.Visitor<String> {                     
-  public String print(Expression expression) {                                            
-    return expression.accept(this);                                          
-  } 
+// Output is streamed into an Appendable from an explicit work stack of
+// pending nodes and text, so printing is linear in the size of the tree
+// and deep trees do not overflow the Java stack.
+public class ASTPrinter implements Expression.Visitor<Void> {
+  // Nodes still to print and text still to write, in output order from the
+  // top.
+  private final Deque<Object> work = new ArrayDeque<>();
+
+  public String print(Expression expression) {
+    StringBuilder builder = new StringBuilder();
+    try {
+      print(expression, builder);
+    } catch (IOException error) {
+      // A StringBuilder never throws.
+      throw new UncheckedIOException(error);
+    }
+    return builder.toString();
+  }
+
+  public void print(Expression expression, Appendable out) throws IOException {
+    work.clear();
+    work.push(expression);
+    while (!work.isEmpty()) {
+      Object item = work.pop();
+      if (item instanceof Expression) {
+        ((Expression) item).accept(this);
+      } else {
+        out.append((CharSequence) item);
+      }
+    }
+  }
+
   @Override                                                          
-  public String visitBinaryExpression(Expression.Binary expression) {                  
+  public Void visitBinaryExpression(Expression.Binary expression) {                  
     return parenthesize(expression.operator.lexeme, expression.left, expression.right);
   }
 
   @Override                                                          
-  public String visitGroupExpression(Expression.Group expression) {              
+  public Void visitGroupExpression(Expression.Group expression) {              
     return parenthesize("group", expression.expression);                   
   }                                                                  
 
   @Override                                                          
-  public String visitLiteralExpression(Expression.Literal expression) {                
-    if (expression.value == null) return "nil";                            
-    return expression.value.toString();                                    
+  public Void visitLiteralExpression(Expression.Literal expression) {                
+    work.push(expression.value == null ? "nil" : expression.value.toString());
+    return null;
   }                                                                  
 
   @Override                                                          
-  public String visitUnaryExpression(Expression.Unary expression) {                    
+  public Void visitUnaryExpression(Expression.Unary expression) {                    
     return parenthesize(expression.operator.lexeme, expression.right);           
   } 
-  
-  private String parenthesize(String name, Expression... expressions) {
-    StringBuilder builder = new StringBuilder();
 
-    builder.append("(").append(name);                      
-    for (Expression expression : expressions) {                              
-      builder.append(" ");                                 
-      builder.append(expression.accept(this));                   
-    }                                                      
-    builder.append(")");                                   
-
-    return builder.toString();                             
+  @Override
+  public Void visitVariableExpression(Expression.Variable expression) {
+    work.push(expression.name.lexeme);
+    return null;
+  }
+  
+  // Schedules "(name e1 e2 ...)", pushed back to front.
+  private Void parenthesize(String name, Expression... expressions) {
+    work.push(")");
+    for (int i = expressions.length - 1; i >= 0; i--) {
+      work.push(expressions[i]);
+      work.push(" ");
+    }
+    work.push(name);
+    work.push("(");
+    return null;
   } 
 
   public static void main(String[] args) {                 
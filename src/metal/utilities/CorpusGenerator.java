@@ -0,0 +1,157 @@
+package metal.utilities;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+
+// Generates synthetic Metal sources for benchmarking and for warming up the
+// daemon. The output is a function of the settings alone (including the
+// seed), so runs on different machines or commits measure the same input.
+//
+// A source is a flat chain of terms joined by binary operators, which the
+// parser folds in a loop, and each term is a random subexpression nested
+// at most `depth` levels deep; that keeps the size and the nesting depth
+// independent of each other.
+public class CorpusGenerator {
+  private static final String[] OPERATORS = { "+", "-", "*", "/", "<", "<=", ">", ">=", "==", "!=" };
+  private static final String[] WORDS = { "alpha", "beta", "gamma", "delta", "metal", "token", "x" };
+
+  // Target number of tokens.
+  int tokens = 100_000;
+  // Maximum nesting depth of a term.
+  int depth = 8;
+  long seed = 42;
+  // Fraction of literals that are strings rather than numbers.
+  double strings = 0.1;
+  // Fraction of numbers that have a fractional part.
+  double fractions = 0.5;
+  // Chance of wrapping a subexpression in a unary operator.
+  double unary = 0.1;
+  // Chance of a comment between two terms.
+  double comments = 0.02;
+  // Chance of a line break between two terms.
+  double newlines = 0.05;
+
+  private SplittableRandom random;
+  private int emitted;
+
+  public static void main(String[] args) throws IOException {
+    CorpusGenerator generator = new CorpusGenerator();
+    for (String arg : args) {
+      if (!generator.configure(arg)) {
+        System.err.println("Usage: generate_corpus [--tokens=N] [--depth=N] [--seed=N] [--strings=P]"
+            + " [--fractions=P] [--unary=P] [--comments=P] [--newlines=P]");
+        System.exit(64);
+      }
+    }
+
+    Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+    generator.generate(out);
+    out.flush();
+  }
+
+  /**
+   * Applies a --name=value setting, returning false if it is not one.
+   */
+  public boolean configure(String arg) {
+    int equals = arg.indexOf('=');
+    if (!arg.startsWith("--") || equals < 0) {
+      return false;
+    }
+    String value = arg.substring(equals + 1);
+    try {
+      switch (arg.substring(2, equals)) {
+      case "tokens": tokens = Integer.parseInt(value); return true;
+      case "depth": depth = Integer.parseInt(value); return true;
+      case "seed": seed = Long.parseLong(value); return true;
+      case "strings": strings = Double.parseDouble(value); return true;
+      case "fractions": fractions = Double.parseDouble(value); return true;
+      case "unary": unary = Double.parseDouble(value); return true;
+      case "comments": comments = Double.parseDouble(value); return true;
+      case "newlines": newlines = Double.parseDouble(value); return true;
+      default: return false;
+      }
+    } catch (NumberFormatException error) {
+      return false;
+    }
+  }
+
+  public long seed() {
+    return seed;
+  }
+
+  public int depth() {
+    return depth;
+  }
+
+  public String generate() {
+    StringBuilder builder = new StringBuilder(tokens * 4);
+    try {
+      generate(builder);
+    } catch (IOException error) {
+      throw new AssertionError(error);
+    }
+    return builder.toString();
+  }
+
+  public void generate(Appendable out) throws IOException {
+    random = new SplittableRandom(seed);
+    emitted = 0;
+
+    term(out, depth);
+    while (emitted < tokens) {
+      if (random.nextDouble() < comments) {
+        out.append(random.nextBoolean() ? " # " + word() + "\n" : " /* " + word() + " */");
+      }
+      out.append(random.nextDouble() < newlines ? "\n" : " ");
+      operator(out);
+      out.append(' ');
+      term(out, depth);
+    }
+    out.append('\n');
+  }
+
+  private void term(Appendable out, int depth) throws IOException {
+    if (random.nextDouble() < unary) {
+      out.append(random.nextBoolean() ? "-" : "!");
+      emitted++;
+    }
+
+    if (depth == 0 || random.nextInt(depth + 1) == 0) {
+      literal(out);
+      return;
+    }
+
+    out.append('(');
+    term(out, depth - 1);
+    out.append(' ');
+    operator(out);
+    out.append(' ');
+    term(out, depth - 1);
+    out.append(')');
+    emitted += 2;
+  }
+
+  private void literal(Appendable out) throws IOException {
+    if (random.nextDouble() < strings) {
+      out.append('"').append(word()).append('"');
+    } else if (random.nextDouble() < fractions) {
+      out.append(Integer.toString(random.nextInt(100_000))).append('.').append(Integer.toString(random.nextInt(1000)));
+    } else {
+      out.append(Integer.toString(random.nextInt(100_000)));
+    }
+    emitted++;
+  }
+
+  private void operator(Appendable out) throws IOException {
+    out.append(OPERATORS[random.nextInt(OPERATORS.length)]);
+    emitted++;
+  }
+
+  private String word() {
+    return WORDS[random.nextInt(WORDS.length)];
+  }
+}
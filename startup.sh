@@ -0,0 +1,32 @@
+#!/bin/bash
+# Packages Metal as a jar, records an application class-data-sharing
+# archive from a training run, and reports startup time with and without
+# it. Run with the archive as:
+#   java -XX:SharedArchiveFile=build/metal.jsa -jar build/metal.jar <script>
+
+set -e
+cd "$(dirname "$0")"
+runs=${RUNS:-10}
+
+rm -rf build
+mkdir -p build/classes build/cache
+javac -encoding UTF-8 -d build/classes $(find src -name '*.java')
+# The archive only covers classes loaded from jars.
+jar cfe build/metal.jar metal.Metal -C build/classes .
+
+java -XX:ArchiveClassesAtExit=build/metal.jsa -Xlog:cds=off -Dmetal.cache.dir=build/cache \
+  -cp build/metal.jar metal.benchmark.Training build/training.mtl
+
+echo '1 + 2 * 3' > build/hello.mtl
+measure() {
+  local start end
+  start=$(date +%s%N)
+  for ((i = 0; i < runs; i++)); do
+    java "$@" -Dmetal.cache.dir=build/cache -jar build/metal.jar build/hello.mtl > /dev/null
+  done
+  end=$(date +%s%N)
+  echo $(( (end - start) / runs / 1000000 ))
+}
+
+echo "startup without archive: $(measure -Xshare:auto) ms"
+echo "startup with archive:    $(measure -XX:SharedArchiveFile=build/metal.jsa) ms"
@@ -0,0 +1,11 @@
+#!/bin/bash
+# Compiles the sources with the tests under test/ and runs every *Test class.
+
+rm -rf build/test
+javac -encoding UTF-8 -d build/test $(find src test -name '*.java') || exit 1
+
+status=0
+for test in $(cd test && find . -name '*Test.java' | sort | sed 's|^\./||; s|\.java$||; s|/|.|g'); do
+  java -cp build/test "$test" || status=1
+done
+exit $status
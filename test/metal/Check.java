@@ -0,0 +1,23 @@
+package metal;
+
+import java.util.Objects;
+
+// Assertions for the tests under test/. Each test class is a main program
+// that runs its cases in order and stops at the first failure; test.sh
+// runs them all.
+public final class Check {
+  private Check() {
+  }
+
+  public static void that(boolean condition, String message) {
+    if (!condition) {
+      throw new AssertionError(message);
+    }
+  }
+
+  public static void equal(Object expected, Object actual, String what) {
+    if (!Objects.equals(expected, actual)) {
+      throw new AssertionError(what + ": expected " + expected + " but was " + actual);
+    }
+  }
+}
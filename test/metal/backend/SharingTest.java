@@ -0,0 +1,90 @@
+package metal.backend;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+
+import metal.Check;
+import metal.backend.columnar.ColumnarExpression;
+import metal.backend.interpreter.Interpreter;
+import metal.backend.jit.JitCompiler;
+import metal.backend.vm.BytecodeCompiler;
+import metal.backend.vm.Chunk;
+import metal.backend.vm.VM;
+import metal.cache.ExpressionCodec;
+import metal.frontend.parser.grammar.Expression;
+import metal.frontend.scanner.OperatorKind;
+import metal.frontend.scanner.Token;
+import metal.frontend.scanner.TokenType;
+
+// Trees in which every level uses the level below twice. As DAGs they have
+// a node per level, but walked as trees they have 2^LEVELS paths, so each
+// case only finishes if shared subtrees are computed once.
+public class SharingTest {
+  private static final int LEVELS = 64;
+
+  public static void main(String[] args) throws IOException {
+    numbers();
+    values();
+    columns();
+    codec();
+    System.out.println("SharingTest: ok");
+  }
+
+  static void numbers() throws IOException {
+    Expression expression = doubling(new Expression.Literal(1.0), OperatorKind.Plus);
+    Object expected = Math.pow(2, LEVELS);
+    Check.equal(LEVELS, Sharing.sharedNodes(expression).size() + 1, "shared nodes");
+    Check.equal(expected, new Interpreter().evaluate(expression), "interpreter");
+    Check.equal(expected, new Interpreter().evaluateNumber(expression), "interpreter, unboxed");
+    Chunk chunk = BytecodeCompiler.compile(expression);
+    Check.equal(expected, new VM().run(chunk), "vm");
+    Check.equal(expected, new VM().run(roundTrip(chunk)), "vm, read back");
+    Check.equal(expected, JitCompiler.compile(expression).evaluate(), "jit");
+    Check.equal(expected, JitCompiler.compile(expression).evaluateNumber(), "jit, unboxed");
+  }
+
+  static void values() {
+    Expression expression = doubling(new Expression.Literal("s"), OperatorKind.EqualEqual);
+    Check.equal(true, new Interpreter().evaluate(expression), "interpreter");
+    Check.equal(true, new VM().run(BytecodeCompiler.compile(expression)), "vm");
+    Check.equal(true, JitCompiler.compile(expression).evaluate(), "jit");
+  }
+
+  static void columns() {
+    Token x = new Token(TokenType.Identifier, OperatorKind.None, "x", null, 1, 1, -1);
+    Expression expression = doubling(new Expression.Variable(x), OperatorKind.Plus);
+    double[] result = ColumnarExpression.compile(expression)
+        .evaluate(Collections.singletonMap("x", new double[] {1, 3}), 2);
+    Check.equal(Math.pow(2, LEVELS), result[0], "row 0");
+    Check.equal(3 * Math.pow(2, LEVELS), result[1], "row 1");
+  }
+
+  static void codec() throws IOException {
+    Expression expression = doubling(new Expression.Literal(1.0), OperatorKind.Plus);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ExpressionCodec.write(expression, new DataOutputStream(bytes));
+    Check.that(bytes.size() < 100 * LEVELS, "encoding has " + bytes.size() + " bytes");
+    Expression read = ExpressionCodec.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), bytes.size());
+    Expression.Binary root = (Expression.Binary) read;
+    Check.that(root.left == root.right, "read back as a tree");
+    Check.equal(Math.pow(2, LEVELS), new Interpreter().evaluate(read), "read back");
+  }
+
+  private static Expression doubling(Expression leaf, OperatorKind kind) {
+    Expression expression = leaf;
+    for (int i = 0; i < LEVELS; i++) {
+      expression = new Expression.Binary(expression, new Token(kind.type, kind, kind.lexeme, null, 1, 1), expression);
+    }
+    return expression;
+  }
+
+  private static Chunk roundTrip(Chunk chunk) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    chunk.write(new DataOutputStream(bytes));
+    return Chunk.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+  }
+}
@@ -0,0 +1,61 @@
+package metal.backend.vm;
+
+import metal.Check;
+import metal.backend.RuntimeError;
+import metal.backend.interpreter.Interpreter;
+import metal.frontend.parser.grammar.Expression;
+import metal.frontend.scanner.OperatorKind;
+import metal.frontend.scanner.Token;
+import metal.frontend.scanner.TokenType;
+
+public class VMTest {
+  // More constants than a two byte index can address.
+  private static final int CONSTANTS = 70_000;
+
+  public static void main(String[] args) {
+    manyNumbers();
+    manyStrings();
+    variableAfterManyConstants();
+    System.out.println("VMTest: ok");
+  }
+
+  static void manyNumbers() {
+    Expression expression = sum(0, CONSTANTS, true);
+    Chunk chunk = BytecodeCompiler.compile(expression);
+    Check.equal(new Interpreter().evaluate(expression), new VM().run(chunk), "sum of distinct numbers");
+    Check.that(chunk.toString().contains("WIDE DCONST"), "expected WIDE DCONST in the chunk");
+  }
+
+  static void manyStrings() {
+    Expression expression = sum(0, CONSTANTS, false);
+    Check.equal(new Interpreter().evaluate(expression), new VM().run(BytecodeCompiler.compile(expression)),
+        "concatenation of distinct strings");
+  }
+
+  static void variableAfterManyConstants() {
+    Token name = new Token(TokenType.Identifier, OperatorKind.None, "x", null, 3, 7, -1);
+    Expression expression = new Expression.Binary(sum(0, CONSTANTS, false), operator(OperatorKind.Plus),
+        new Expression.Variable(name));
+    try {
+      new VM().run(BytecodeCompiler.compile(expression));
+      throw new AssertionError("expected a runtime error");
+    } catch (RuntimeError error) {
+      Check.equal("Undefined variable 'x'.", error.getMessage(), "message");
+      Check.equal("3:7", error.token.line + ":" + error.token.column, "position");
+    }
+  }
+
+  // A balanced tree of + over the literals [from, to), so that compiling
+  // it does not recurse once per literal.
+  private static Expression sum(int from, int to, boolean numbers) {
+    if (to - from == 1) {
+      return new Expression.Literal(numbers ? (Object) (double) from : "s" + from);
+    }
+    int middle = (from + to) >>> 1;
+    return new Expression.Binary(sum(from, middle, numbers), operator(OperatorKind.Plus), sum(middle, to, numbers));
+  }
+
+  private static Token operator(OperatorKind kind) {
+    return new Token(kind.type, kind, kind.lexeme, null, 1, 1);
+  }
+}
@@ -0,0 +1,103 @@
+package metal.cache;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+import metal.Check;
+import metal.frontend.parser.Parser;
+import metal.frontend.parser.grammar.Expression;
+import metal.frontend.scanner.Scanner;
+import metal.utilities.ASTPrinter;
+
+public class ScriptCacheTest {
+  private static final String SOURCE = "(1 + 2) * -x == \"some string\" + \"another\"";
+
+  public static void main(String[] args) throws IOException {
+    Path directory = Files.createTempDirectory("metal-cache-test");
+    try {
+      ScriptCache cache = new ScriptCache(directory, "test");
+      byte[] key = store(cache, directory);
+      roundTrip(cache, key);
+      corruptEntriesAreMisses(cache, key, directory);
+    } finally {
+      try (Stream<Path> files = Files.walk(directory)) {
+        files.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+      }
+    }
+    System.out.println("ScriptCacheTest: ok");
+  }
+
+  static byte[] store(ScriptCache cache, Path directory) throws IOException {
+    Path script = directory.resolve("script.mtl");
+    Files.write(script, SOURCE.getBytes(StandardCharsets.UTF_8));
+    byte[] key = cache.key(script);
+    cache.store(key, new Parser(new Scanner(SOURCE)).parse());
+    return key;
+  }
+
+  static void roundTrip(ScriptCache cache, byte[] key) {
+    Expression loaded = cache.load(key);
+    Check.that(loaded != null, "stored entry was not loaded");
+    Check.equal(print(new Parser(new Scanner(SOURCE)).parse()), print(loaded), "loaded tree");
+  }
+
+  static void corruptEntriesAreMisses(ScriptCache cache, byte[] key, Path directory) throws IOException {
+    Path entry;
+    try (Stream<Path> files = Files.list(directory)) {
+      entry = files.filter(path -> path.toString().endsWith(".mtlc")).findFirst().orElseThrow();
+    }
+    byte[] original = Files.readAllBytes(entry);
+
+    // Truncated at every length.
+    for (int length = 0; length < original.length; length++) {
+      Files.write(entry, Arrays.copyOf(original, length));
+      Check.that(cache.load(key) == null, "entry truncated to " + length + " bytes was loaded");
+    }
+
+    // Every byte replaced by values that make lengths, tags and operators
+    // out of range.
+    byte[] values = { 0, 1, 5, 0x7f, (byte) 0x80, (byte) 0xff };
+    for (int i = 0; i < original.length; i++) {
+      for (byte value : values) {
+        byte[] corrupt = original.clone();
+        corrupt[i] = value;
+        Files.write(entry, corrupt);
+        cache.load(key);
+      }
+    }
+
+    // A string length far past the end of the entry.
+    byte[] text = "some string".getBytes(StandardCharsets.UTF_8);
+    for (int i = 4; i + 4 + text.length <= original.length; i++) {
+      if (readInt(original, i) == text.length && Arrays.equals(original, i + 4, i + 4 + text.length, text, 0, text.length)) {
+        for (int length : new int[] { Integer.MAX_VALUE, -1, original.length }) {
+          byte[] corrupt = original.clone();
+          writeInt(corrupt, i, length);
+          Files.write(entry, corrupt);
+          Check.that(cache.load(key) == null, "entry with string length " + length + " was loaded");
+        }
+        return;
+      }
+    }
+    throw new AssertionError("string literal not found in the entry");
+  }
+
+  private static String print(Expression expression) {
+    return new ASTPrinter().print(expression);
+  }
+
+  private static int readInt(byte[] bytes, int at) {
+    return (bytes[at] & 0xff) << 24 | (bytes[at + 1] & 0xff) << 16 | (bytes[at + 2] & 0xff) << 8 | (bytes[at + 3] & 0xff);
+  }
+
+  private static void writeInt(byte[] bytes, int at, int value) {
+    bytes[at] = (byte) (value >>> 24);
+    bytes[at + 1] = (byte) (value >>> 16);
+    bytes[at + 2] = (byte) (value >>> 8);
+    bytes[at + 3] = (byte) value;
+  }
+}
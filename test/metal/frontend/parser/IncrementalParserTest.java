@@ -0,0 +1,95 @@
+package metal.frontend.parser;
+
+import java.util.Random;
+
+import metal.Check;
+import metal.backend.RuntimeError;
+import metal.backend.interpreter.Interpreter;
+import metal.frontend.parser.grammar.Expression;
+import metal.frontend.scanner.Scanner;
+
+public class IncrementalParserTest {
+  public static void main(String[] args) {
+    runtimeErrorAfterInsertedLines();
+    positionsMatchFreshParse();
+    sameLengthEditReusesLaterGroups();
+    System.out.println("IncrementalParserTest: ok");
+  }
+
+  static void runtimeErrorAfterInsertedLines() {
+    IncrementalParser parser = new IncrementalParser("1 + (2 * \"a\")");
+    Expression edited = parser.edit(0, 0, "0 +\n\n");
+    Expression fresh = new Parser(new Scanner("0 +\n\n1 + (2 * \"a\")")).parse();
+    Check.equal(errorPosition(fresh), errorPosition(edited), "error position");
+  }
+
+  static void positionsMatchFreshParse() {
+    Random random = new Random(10);
+    String[] pieces = { "1", "x", " + ", " * ", "-", "(", ")", "\n", "  ", "\"s\"", "/* c */" };
+    String source = "(1 + x) * (2 - (y / 3)) + (\"s\" * z)";
+    IncrementalParser parser = new IncrementalParser(source);
+    for (int i = 0; i < 5000; i++) {
+      int offset = random.nextInt(source.length() + 1);
+      int removed = random.nextInt(Math.min(3, source.length() - offset) + 1);
+      String inserted = pieces[random.nextInt(pieces.length)];
+      source = source.substring(0, offset) + inserted + source.substring(offset + removed);
+
+      Expression edited = parser.edit(offset, removed, inserted);
+      Expression fresh = new Parser(new Scanner(source)).parse();
+      Check.equal(positions(fresh), positions(edited), "positions in " + source);
+    }
+  }
+
+  static void sameLengthEditReusesLaterGroups() {
+    IncrementalParser parser = new IncrementalParser("1 + (2 * 3) + (4 - (5))");
+    Expression.Binary before = (Expression.Binary) parser.expression();
+    Expression.Binary after = (Expression.Binary) parser.edit(0, 1, "9");
+    Check.that(after.right == before.right, "group after the edit was parsed again");
+    Check.that(((Expression.Binary) after.left).right == ((Expression.Binary) before.left).right,
+        "group after the edit was parsed again");
+  }
+
+  private static String errorPosition(Expression expression) {
+    try {
+      new Interpreter().evaluate(expression);
+    } catch (RuntimeError error) {
+      return error.token.line + ":" + error.token.column;
+    }
+    throw new AssertionError("expected a runtime error");
+  }
+
+  // Every token in the tree with its position, in source order.
+  private static String positions(Expression expression) {
+    if (expression == null) {
+      return "";
+    }
+    StringBuilder out = new StringBuilder();
+    positions(expression, out);
+    return out.toString();
+  }
+
+  private static void positions(Expression expression, StringBuilder out) {
+    if (expression instanceof Expression.Binary) {
+      Expression.Binary binary = (Expression.Binary) expression;
+      positions(binary.left, out);
+      out.append(binary.operator.lexeme).append('@').append(binary.operator.line).append(':')
+          .append(binary.operator.column).append(' ');
+      positions(binary.right, out);
+    } else if (expression instanceof Expression.Group) {
+      out.append("( ");
+      positions(((Expression.Group) expression).expression, out);
+      out.append(") ");
+    } else if (expression instanceof Expression.Unary) {
+      Expression.Unary unary = (Expression.Unary) expression;
+      out.append(unary.operator.lexeme).append('@').append(unary.operator.line).append(':')
+          .append(unary.operator.column).append(' ');
+      positions(unary.right, out);
+    } else if (expression instanceof Expression.Variable) {
+      Expression.Variable variable = (Expression.Variable) expression;
+      out.append(variable.name.lexeme).append('@').append(variable.name.line).append(':')
+          .append(variable.name.column).append(' ');
+    } else {
+      out.append(((Expression.Literal) expression).value).append(' ');
+    }
+  }
+}
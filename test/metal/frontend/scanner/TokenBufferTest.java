@@ -0,0 +1,28 @@
+package metal.frontend.scanner;
+
+import metal.Check;
+
+public class TokenBufferTest {
+  public static void main(String[] args) {
+    positionsMatchScannerAcrossBlockComments();
+    System.out.println("TokenBufferTest: ok");
+  }
+
+  static void positionsMatchScannerAcrossBlockComments() {
+    String[] sources = {
+      "1 /* one\ntwo\nthree */ + 2",
+      "/*\n\n*/ x * (y\n/* a\n b */ - 3)",
+      "\"a\" /* x */ + /* \n */ 4\n/* end\n*/",
+    };
+    for (String source : sources) {
+      TokenBuffer buffer = TokenBuffer.scan(source);
+      Scanner scanner = new Scanner(source);
+      for (int i = 0; i < buffer.size(); i++) {
+        Token token = scanner.next();
+        Check.equal(token.type, buffer.type(i), "type of token " + i + " in " + source);
+        Check.equal(token.line + ":" + token.column, buffer.line(i) + ":" + buffer.column(i),
+            "position of token " + i + " in " + source);
+      }
+    }
+  }
+}